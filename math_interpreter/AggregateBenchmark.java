@@ -0,0 +1,192 @@
+package math_interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Evaluates an expression over a stream of bindings and aggregates the
+ * results two ways: collecting them into a list and computing the statistics
+ * afterwards, as callers did before {@link StreamingStatistics}, and updating a
+ * {@link StreamingStatistics} as each result arrives. Reports time, bytes
+ * allocated per row and the rank error of the sketched quantiles, then merges
+ * per-thread partial aggregates and checks them against a single pass. Exits
+ * with status 1 if a moment differs from the exact value, or a quantile's rank
+ * error exceeds {@link #MAX_RANK_ERROR}. Run with
+ * {@code java math_interpreter.AggregateBenchmark [rows] [threads]}.
+ */
+final class AggregateBenchmark {
+	private AggregateBenchmark() {}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static final double[] QUANTILES = { 0.01, 0.25, 0.5, 0.75, 0.99, 0.999 };
+
+	/** About twice the sketch's documented error for the default {@code k} */
+	private static final double MAX_RANK_ERROR = 0.02;
+
+	private static boolean failed;
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			System.out.println("FAIL: " + what);
+			failed = true;
+		}
+	}
+
+	private static boolean close(double a, double b) {
+		return Math.abs(a - b) <= 1e-9 * Math.max(Math.abs(a), Math.abs(b));
+	}
+
+	/** Checks {@code statistics} against the exact statistics of {@code sorted} */
+	private static void checkAgainst(String name, StreamingStatistics statistics, double[] sorted) {
+		var sum = 0.0;
+		for (final var x : sorted)
+			sum += x;
+		final var mean = sum / sorted.length;
+		var squares = 0.0;
+		for (final var x : sorted)
+			squares += (x - mean) * (x - mean);
+		check(name + " count " + statistics.count(), statistics.count() == sorted.length);
+		check(name + " mean " + statistics.mean() + " vs " + mean, close(statistics.mean(), mean));
+		check(name + " stddev " + statistics.stddev(), close(statistics.stddev(), Math.sqrt(squares / (sorted.length - 1))));
+		check(name + " min", statistics.min() == sorted[0]);
+		check(name + " max", statistics.max() == sorted[sorted.length - 1]);
+		for (final var q : QUANTILES) {
+			final var error = rankError(sorted, q, statistics.quantile(q));
+			check(name + " quantile " + q + " rank error " + error, error <= MAX_RANK_ERROR);
+		}
+	}
+
+	private static long allocated() {
+		return THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/** Evaluates {@code price * quantity * (1 - rate)} for one generated row */
+	private static final class Rows {
+		private final TieredExpression expression = new TieredExpression(
+				MathParser.tryParse("price * quantity * (1 - rate)").postfix());
+		private final Random random;
+		private final Variables row = new MapVariables();
+
+		Rows(long seed) {
+			random = new Random(seed);
+		}
+
+		Object next() {
+			row.put("price", Math.exp(random.nextGaussian() * 0.8 + 3));
+			row.put("quantity", (long) (1 + random.nextInt(20)));
+			row.put("rate", random.nextInt(30) / 100.0);
+			return expression.evaluate(row);
+		}
+	}
+
+	private static double rankError(double[] sorted, double q, double estimate) {
+		final var rank = (double) upperBound(sorted, estimate) / sorted.length;
+		return Math.abs(rank - q);
+	}
+
+	private static int upperBound(double[] sorted, double x) {
+		var low = 0;
+		var high = sorted.length;
+		while (low < high) {
+			final var middle = (low + high) >>> 1;
+			if (sorted[middle] <= x)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final var rows = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000_000;
+		final var threadCount = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+		for (var round = 0; round < 3; ++round) {
+			// evaluating alone, to subtract from both
+			var source = new Rows(round);
+			var bytes = allocated();
+			var start = System.nanoTime();
+			for (var i = 0; i < rows; ++i)
+				source.next();
+			final var evaluateNs = (double) (System.nanoTime() - start) / rows;
+			final var evaluateBytes = (double) (allocated() - bytes) / rows;
+
+			source = new Rows(round);
+			bytes = allocated();
+			start = System.nanoTime();
+			final List<Double> collected = new ArrayList<>();
+			for (var i = 0; i < rows; ++i)
+				collected.add(((Number) source.next()).doubleValue());
+			final var sorted = new double[collected.size()];
+			var sum = 0.0;
+			for (var i = 0; i < sorted.length; ++i)
+				sum += sorted[i] = collected.get(i);
+			final var mean = sum / sorted.length;
+			var squares = 0.0;
+			for (final var x : sorted)
+				squares += (x - mean) * (x - mean);
+			Arrays.sort(sorted);
+			final var p99 = sorted[(int) (0.99 * (sorted.length - 1))];
+			final var listNs = (double) (System.nanoTime() - start) / rows - evaluateNs;
+			final var listBytes = (double) (allocated() - bytes) / rows - evaluateBytes;
+
+			source = new Rows(round);
+			bytes = allocated();
+			start = System.nanoTime();
+			final var statistics = new StreamingStatistics();
+			for (var i = 0; i < rows; ++i)
+				statistics.accept(source.next());
+			final var streamNs = (double) (System.nanoTime() - start) / rows - evaluateNs;
+			final var streamBytes = (double) (allocated() - bytes) / rows - evaluateBytes;
+
+			var worst = 0.0;
+			for (final var q : QUANTILES)
+				worst = Math.max(worst, rankError(sorted, q, statistics.quantile(q)));
+			checkAgainst("streaming", statistics, sorted);
+			System.out.printf("list: %6.1f ns %6.1f B/row   streaming: %6.1f ns %6.2f B/row   "
+					+ "stddev %.6f vs %.6f   p99 %.3f vs %.3f   worst rank error %.4f%n", listNs, listBytes, streamNs,
+					streamBytes, Math.sqrt(squares / (sorted.length - 1)), statistics.stddev(), p99,
+					statistics.quantile(0.99), worst);
+		}
+
+		// per-thread partials, merged afterwards
+		final var partials = new StreamingStatistics[threadCount];
+		final var threads = new ArrayList<Thread>();
+		for (var t = 0; t < threadCount; ++t) {
+			final var index = t;
+			threads.add(Thread.ofPlatform().start(() -> {
+				final var source = new Rows(100 + index);
+				final var partial = new StreamingStatistics();
+				for (var i = 0; i < rows / threadCount; ++i)
+					partial.accept(source.next());
+				partials[index] = partial;
+			}));
+		}
+		for (final var thread : threads)
+			thread.join();
+		final var merged = new StreamingStatistics();
+		final var single = new StreamingStatistics();
+		final var all = new double[rows / threadCount * threadCount];
+		var n = 0;
+		for (var t = 0; t < threadCount; ++t) {
+			merged.merge(partials[t]);
+			final var source = new Rows(100 + t);
+			for (var i = 0; i < rows / threadCount; ++i) {
+				final var result = source.next();
+				single.accept(result);
+				all[n++] = ((Number) result).doubleValue();
+			}
+		}
+		Arrays.sort(all);
+		System.out.printf("merged %d partials: %s%nsingle pass:        %s%n", threadCount, merged, single);
+		checkAgainst("merged", merged, all);
+		checkAgainst("single pass", single, all);
+		if (failed)
+			System.exit(1);
+	}
+}
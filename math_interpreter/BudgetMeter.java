@@ -0,0 +1,135 @@
+package math_interpreter;
+
+import math_interpreter.EvaluationBudget.BudgetExceededException;
+import math_interpreter.EvaluationBudget.Resource;
+
+/**
+ * Tracks resource use of one evaluation against an {@link EvaluationBudget}.
+ * {@link #step} is on the hot path and costs a single comparison; the step
+ * limit and the deadline are only examined every {@link #CHECK_INTERVAL} steps
+ * (or exactly at the step limit, whichever comes first). A scalar step is
+ * nanoseconds, so that is at most microseconds late. A matrix operation can
+ * take far longer than a step, so the deadline is also checked after every
+ * matrix result, and the element limit before one is allocated. The deadline
+ * cannot interrupt an operation that is already running, or a function call.
+ */
+final class BudgetMeter {
+	static final int CHECK_INTERVAL = 1024;
+
+	private final EvaluationBudget budget;
+	private final long deadline;
+	private final boolean hasDeadline;
+
+	private long steps;
+	private long nextCheck;
+	private int depth;
+	private long elements;
+
+	BudgetMeter(EvaluationBudget budget) {
+		this.budget = budget;
+		this.hasDeadline = budget.timeout() != null;
+		this.deadline = hasDeadline ? System.nanoTime() + budget.timeout().toNanos() : 0;
+		scheduleCheck();
+	}
+
+	void step() {
+		if (++steps >= nextCheck)
+			check();
+	}
+
+	private void check() {
+		if (steps > budget.maxSteps())
+			throw new BudgetExceededException(Resource.STEPS, budget.maxSteps());
+		checkDeadline();
+		scheduleCheck();
+	}
+
+	private void checkDeadline() {
+		if (hasDeadline && System.nanoTime() - deadline > 0)
+			throw new BudgetExceededException(Resource.DEADLINE, budget.timeout().toMillis());
+	}
+
+	private void scheduleCheck() {
+		final var max = budget.maxSteps();
+		// the step limit must trip exactly, so never schedule past maxSteps + 1
+		nextCheck = (max - steps < CHECK_INTERVAL) ? max + 1 : steps + CHECK_INTERVAL;
+	}
+
+	/**
+	 * Checks the current operand stack height, on top of the nesting depth
+	 * accumulated by {@link #enter}.
+	 */
+	void checkDepth(int stackHeight) {
+		if (depth + stackHeight > budget.maxDepth())
+			throw new BudgetExceededException(Resource.DEPTH, budget.maxDepth());
+	}
+
+	void enter() {
+		if (++depth > budget.maxDepth())
+			throw new BudgetExceededException(Resource.DEPTH, budget.maxDepth());
+	}
+
+	void exit() {
+		--depth;
+	}
+
+	void allocate(long count) {
+		elements += count;
+		if (elements > budget.maxElements())
+			throw new BudgetExceededException(Resource.ELEMENTS, budget.maxElements());
+	}
+
+	/**
+	 * Throws before {@code operator} is applied to {@code a} and {@code b}
+	 * ({@code null} for a unary operator) if its matrix result would exceed the
+	 * element budget. Nothing is charged; {@link #charge} does that afterwards.
+	 */
+	void reserve(Token operator, Object a, Object b) {
+		// unary plus returns its operand
+		if (operator == UnaryArithmeticOperator.PLUS)
+			return;
+		final long count;
+		if (a instanceof final Matrix m && b instanceof final Matrix n)
+			count = (operator == BinaryArithmeticOperator.TIMES) ? (long) m.rows * n.cols : m.data.length;
+		else if (a instanceof final Matrix m)
+			count = m.data.length;
+		else if (b instanceof final Matrix n)
+			count = n.data.length;
+		else
+			return;
+		if (elements + count > budget.maxElements())
+			throw new BudgetExceededException(Resource.ELEMENTS, budget.maxElements());
+	}
+
+	/**
+	 * Charges the elements of a matrix {@code result} of an operator applied to
+	 * {@code a} and {@code b} ({@code null} for a unary operator), and checks the
+	 * deadline. A result that is one of the operands, like that of unary plus,
+	 * was not allocated and is not charged.
+	 */
+	void charge(Object result, Object a, Object b) {
+		if (result instanceof final Matrix m && result != a && result != b) {
+			allocate(m.data.length);
+			checkDeadline();
+		}
+	}
+
+	/**
+	 * Like {@link #charge(Object, Object, Object)} for a function call. A matrix
+	 * that is not one of the {@code arguments} is taken to be freshly allocated,
+	 * so a function returning a matrix it holds is charged as if it copied it.
+	 */
+	void charge(Object result, Object[] arguments) {
+		if (!(result instanceof final Matrix m))
+			return;
+		for (final var argument : arguments)
+			if (argument == result)
+				return;
+		allocate(m.data.length);
+		checkDeadline();
+	}
+
+	long steps() {
+		return steps;
+	}
+}
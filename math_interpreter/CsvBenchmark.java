@@ -0,0 +1,75 @@
+package math_interpreter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link CsvEvaluator} against a plain scan that only counts the line
+ * breaks of the same mapped file, the floor for any row-by-row processing.
+ * Generates the input on first use. Run with
+ * {@code java math_interpreter.CsvBenchmark [file] [megabytes]};
+ * defaults to 1024 MB in the temporary directory.
+ */
+final class CsvBenchmark {
+	private CsvBenchmark() {}
+
+	private static void generate(Path file, long bytes) throws IOException {
+		final var random = new Random(11);
+		final String[] categories = { "books", "garden", "toys", "\"food, fresh\"", "tools" };
+		try (final BufferedWriter writer = Files.newBufferedWriter(file)) {
+			writer.write("id,price,quantity,category,rate,returned\n");
+			var written = 0L;
+			for (var id = 0L; written < bytes; ++id) {
+				final var row = id + "," + (random.nextInt(100_000) / 100.0) + ',' + random.nextInt(200) + ','
+						+ categories[random.nextInt(categories.length)] + ',' + (random.nextInt(30) / 100.0) + ','
+						+ random.nextBoolean() + '\n';
+				writer.write(row);
+				written += row.length();
+			}
+		}
+	}
+
+	private static long countLines(Path file) throws IOException {
+		try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final var mapped = new CsvEvaluator.MappedFile(channel);
+			var lines = 0L;
+			for (var i = 0L; i < mapped.size(); ++i)
+				if (mapped.get(i) == '\n')
+					++lines;
+			return lines;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		final var input = Path.of((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir") + "/csv-benchmark.csv");
+		final var megabytes = (args.length > 1) ? Long.parseLong(args[1]) : 1024;
+		if (!Files.exists(input)) {
+			System.out.printf("generating %d MB into %s%n", megabytes, input);
+			generate(input, megabytes << 20);
+		}
+		final var size = Files.size(input) / 1e6;
+		final var output = Files.createTempFile("csv-benchmark", ".csv");
+		final var evaluator = new CsvEvaluator("price * quantity > 5000.0 && !returned",
+				List.of("id", "price * quantity * (1 - rate)"));
+
+		for (var round = 0; round < 3; ++round) {
+			var start = System.nanoTime();
+			final var lines = countLines(input);
+			final var scanSeconds = (System.nanoTime() - start) / 1e9;
+
+			start = System.nanoTime();
+			final var summary = evaluator.run(input, output);
+			final var evaluateSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("line scan: %,.0f MB/s (%,d lines)   evaluate: %,.0f MB/s (%,d rows, %,d written)%n",
+					size / scanSeconds, lines, size / evaluateSeconds, summary.rows(), summary.written());
+		}
+		Files.delete(output);
+	}
+}
@@ -0,0 +1,68 @@
+package math_interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Regression checks for {@link CsvEvaluator} column typing: each case runs a
+ * filter and projections over a small CSV file and compares the output (or the
+ * error) with the expected one. Run with {@code java math_interpreter.CsvCheck};
+ * exits with status 1 on failure.
+ */
+final class CsvCheck {
+	private CsvCheck() {}
+
+	/**
+	 * @param expected Output file contents, or the start of the expected
+	 *                 {@link CsvEvaluator.CsvException} message prefixed with
+	 *                 {@code "error: "}
+	 */
+	private record Case(String name, String input, String filter, List<String> projections,
+			Map<String, StaticType> declaredTypes, String expected) {}
+
+	private static final Case[] CASES = {
+		// a long literal compared with a double column
+		new Case("double column", "price\n9.5\n12.5\n3\n", "price < 10", List.of(), Map.of(),
+				"price\n9.5\n3\n"),
+		// inferred LONG from the first row, widened when a later row holds a double
+		new Case("widened filter", "price\n9\n12.5\n", "price < 10", List.of(), Map.of(), "price\n9\n"),
+		new Case("widened projection", "price,qty\n9,2\n12.5,3\n", null, List.of("price * qty"), Map.of(),
+				"price * qty\n18.0\n37.5\n"),
+		// formatted like Double.toString, including where it switches to scientific notation
+		new Case("double output", "a,b\n0.1,3\n0.00001,1\n2.5,4000000\n-0.001,1\n", null, List.of("a * b"), Map.of(),
+				"a * b\n0.30000000000000004\n1.0E-5\n1.0E7\n-0.001\n"),
+		new Case("declared long", "price\n9\n12.5\n", null, List.of("price"), Map.of("price", StaticType.LONG),
+				"error: line 3: '12.5' in column price is not a LONG"),
+		new Case("not a number", "price\n9\nfree\n", null, List.of("price"), Map.of(),
+				"error: line 3: 'free' in column price is not a LONG (inferred"),
+	};
+
+	public static void main(String[] args) throws IOException {
+		final var input = Files.createTempFile("csv-check", ".csv");
+		final var output = Files.createTempFile("csv-check", ".out");
+		var failed = false;
+		try {
+			for (final var c : CASES) {
+				Files.writeString(input, c.input());
+				String actual;
+				try {
+					new CsvEvaluator(c.filter(), c.projections(), c.declaredTypes()).run(input, output);
+					actual = Files.readString(output);
+				} catch (CsvEvaluator.CsvException e) {
+					actual = "error: " + e.getMessage();
+				}
+				final var ok = c.expected().startsWith("error: ") ? actual.startsWith(c.expected())
+						: actual.equals(c.expected());
+				System.out.printf("%-20s %s%n", c.name(), ok ? "ok" : "FAIL: got " + actual.replace("\n", "\\n"));
+				failed |= !ok;
+			}
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,850 @@
+package math_interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a filter and projection expressions over every row of a CSV file,
+ * streaming the rows that pass the filter to an output file. Column names from
+ * the header row are the identifiers the expressions use. The {@link Summary}
+ * holds count, mean, deviation and quantiles of each numeric projection.
+ *
+ * <p>
+ * The input is memory-mapped whole, and fields are parsed straight from the
+ * mapping into a {@code long[]} frame: no {@code String} or boxed number per
+ * field, and only the columns some expression references are parsed at all.
+ * The expressions are compiled once as {@link TypedExpression}s and evaluated
+ * per row with {@link TypedExpression#evaluateRaw}. Memory use does not depend
+ * on the size of the file.
+ *
+ * <p>
+ * Column types come from {@code declaredTypes} or are inferred from the first
+ * data row ({@code true}/{@code false}, integer, otherwise floating point). An
+ * inferred integer column that later holds a floating-point field is widened
+ * to {@code DOUBLE}, and the run starts over so that every row is evaluated
+ * with the same types; declare such columns to avoid the second pass. Any
+ * other field that does not parse as its column's type fails the run with its
+ * line number. Fields may be quoted; quotes are stripped before parsing.
+ */
+final class CsvEvaluator {
+	static class CsvException extends RuntimeException {
+		CsvException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @param rows        Data rows read
+	 * @param written     Rows that passed the filter
+	 * @param projections Statistics of each numeric projection over the written
+	 *                    rows, in order; empty for a {@code BOOLEAN} projection
+	 */
+	record Summary(long rows, long written, List<StreamingStatistics> projections) {}
+
+	/** Thrown by a scan to restart it with {@code column} widened to {@code DOUBLE} */
+	private static final class WidenColumn extends RuntimeException {
+		final String column;
+
+		WidenColumn(String column) {
+			super(null, null, false, false);
+			this.column = column;
+		}
+	}
+
+	private final String filter;
+	private final List<String> projections;
+	private final Map<String, StaticType> declaredTypes;
+
+	/**
+	 * @param filter        Boolean expression a row must satisfy, or
+	 *                      {@code null} to keep every row
+	 * @param projections   Expressions written for each kept row, one output
+	 *                      column each; if empty, kept rows are copied verbatim
+	 * @param declaredTypes Types of columns that should not be inferred
+	 */
+	CsvEvaluator(String filter, List<String> projections, Map<String, StaticType> declaredTypes) {
+		this.filter = filter;
+		this.projections = List.copyOf(projections);
+		this.declaredTypes = Map.copyOf(declaredTypes);
+	}
+
+	CsvEvaluator(String filter, List<String> projections) {
+		this(filter, projections, Map.of());
+	}
+
+	Summary run(Path input, Path output) throws IOException {
+		try (final var channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			final var file = new MappedFile(channel);
+			final var widened = new HashSet<String>();
+			while (true) {
+				try (final var out = Files.newOutputStream(output)) {
+					return new Scan(file, new Output(out), widened).run();
+				} catch (WidenColumn e) {
+					widened.add(e.column);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A read-only mapping of a whole file. A {@link MappedByteBuffer} holds at
+	 * most 2 GiB, so the file is mapped in pages of 1 GiB, each overlapping the
+	 * next by seven bytes: any word that ends within the file lies within one
+	 * page. The mapping is released when it is collected.
+	 */
+	static final class MappedFile {
+		private static final int PAGE_SHIFT = 30;
+		private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+		private final MappedByteBuffer[] pages;
+		private final long size;
+
+		MappedFile(FileChannel channel) throws IOException {
+			size = channel.size();
+			pages = new MappedByteBuffer[(int) ((size + PAGE_MASK) >>> PAGE_SHIFT)];
+			for (var i = 0; i < pages.length; ++i) {
+				final var start = (long) i << PAGE_SHIFT;
+				pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(size - start, (1L << PAGE_SHIFT) + Long.BYTES - 1));
+				pages[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		long size() {
+			return size;
+		}
+
+		byte get(long i) {
+			return pages[(int) (i >>> PAGE_SHIFT)].get((int) i & PAGE_MASK);
+		}
+
+		/** @return The eight bytes at {@code i} in little-endian order; {@code i + 8} must not exceed the size */
+		long getLong(long i) {
+			return pages[(int) (i >>> PAGE_SHIFT)].getLong((int) i & PAGE_MASK);
+		}
+
+		void get(long from, byte[] to, int offset, int length) {
+			while (length > 0) {
+				final var page = pages[(int) (from >>> PAGE_SHIFT)];
+				final var at = (int) from & PAGE_MASK;
+				final var chunk = Math.min(length, page.limit() - at);
+				page.get(at, to, offset, chunk);
+				from += chunk;
+				offset += chunk;
+				length -= chunk;
+			}
+		}
+	}
+
+	/** Small buffered writer that formats longs and doubles without allocating. */
+	private static final class Output {
+		/** 10^0 to 10^19, the last of which only fits as an unsigned multiplier */
+		private static final long[] LONG_POWERS_OF_TEN = new long[20];
+
+		/** "00" to "99" */
+		private static final byte[] DIGIT_PAIRS = new byte[200];
+
+		static {
+			LONG_POWERS_OF_TEN[0] = 1;
+			for (var i = 1; i < LONG_POWERS_OF_TEN.length; ++i)
+				LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i - 1] * 10;
+			for (var i = 0; i < 100; ++i) {
+				DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+				DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+			}
+		}
+
+		private final OutputStream out;
+		private final byte[] buffer = new byte[1 << 16];
+		private int used;
+
+		Output(OutputStream out) {
+			this.out = out;
+		}
+
+		void ensure(int bytes) throws IOException {
+			if (used + bytes > buffer.length) {
+				out.write(buffer, 0, used);
+				used = 0;
+			}
+		}
+
+		void write(byte b) throws IOException {
+			ensure(1);
+			buffer[used++] = b;
+		}
+
+		void write(String text) throws IOException {
+			final var length = text.length();
+			var ascii = length <= buffer.length;
+			for (var i = 0; ascii && i < length; ++i)
+				ascii = text.charAt(i) < 0x80;
+			if (!ascii) {
+				write(text.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			ensure(length);
+			for (var i = 0; i < length; ++i)
+				buffer[used++] = (byte) text.charAt(i);
+		}
+
+		void write(byte[] bytes) throws IOException {
+			if (bytes.length > buffer.length) {
+				out.write(buffer, 0, used);
+				used = 0;
+				out.write(bytes);
+				return;
+			}
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, used, bytes.length);
+			used += bytes.length;
+		}
+
+		void write(MappedFile file, long from, long to) throws IOException {
+			for (var start = from; start < to;) {
+				final var length = (int) Math.min(to - start, buffer.length);
+				ensure(length);
+				file.get(start, buffer, used, length);
+				used += length;
+				start += length;
+			}
+		}
+
+		void write(long value) throws IOException {
+			if (value == Long.MIN_VALUE) {
+				write(Long.toString(value));
+				return;
+			}
+			ensure(20);
+			if (value < 0) {
+				buffer[used++] = '-';
+				value = -value;
+			}
+			var digits = 1;
+			while (digits < 19 && value >= LONG_POWERS_OF_TEN[digits])
+				++digits;
+			putDigits(value, digits);
+		}
+
+		/**
+		 * Puts the low {@code count} decimal digits of non-negative {@code value},
+		 * zero-padded, without checking for space. Digits are produced eight at a
+		 * time in {@code int} arithmetic and put two at a time, since a division
+		 * per digit is most of the cost of formatting.
+		 */
+		private void putDigits(long value, int count) {
+			var end = used + count;
+			used = end;
+			for (; count > 8; count -= 8, end -= 8) {
+				putDigits((int) (value % 100_000_000), end, 8);
+				value /= 100_000_000;
+			}
+			putDigits((int) value, end, count);
+		}
+
+		private void putDigits(int value, int end, int count) {
+			for (; count >= 2; count -= 2) {
+				final var pair = 2 * (value % 100);
+				value /= 100;
+				buffer[--end] = DIGIT_PAIRS[pair + 1];
+				buffer[--end] = DIGIT_PAIRS[pair];
+			}
+			if (count == 1)
+				buffer[end - 1] = (byte) ('0' + value);
+		}
+
+		/**
+		 * Writes {@code value} as {@link Double#toString(double)} does: the decimal
+		 * with the fewest digits that rounds back to it, and the closest such one if
+		 * there are several. In the plain-notation range
+		 * {@code 1e-3 <= |value| < 1e7} that decimal is found here, by binary search
+		 * over the number of fractional digits, with exact 128-bit arithmetic on
+		 * the bounds of the value's rounding interval. Other magnitudes are rare in
+		 * projections and go through {@link Double#toString(double)}.
+		 */
+		void write(double value) throws IOException {
+			final var magnitude = Math.abs(value);
+			if (!(magnitude >= 1e-3 && magnitude < 1e7)) {
+				write(Double.toString(value));
+				return;
+			}
+			// magnitude is (4 * significand) / 2^shift, with shift between 31 and 64
+			final var bits = Double.doubleToRawLongBits(magnitude);
+			final var fraction = bits & ((1L << 52) - 1);
+			final var shift = 1077 - (int) (bits >>> 52);
+			final var center = (fraction | 1L << 52) << 2;
+			// halfway to the neighbours; the one below is closer when the significand is a power of two
+			final var lower = center - ((fraction == 0) ? 1 : 2);
+			final var upper = center + 2;
+			// round-half-even maps the halfway points back to an even significand
+			final var inclusive = (fraction & 1) == 0;
+
+			// 17 significant digits always round-trip
+			var digitsBeforePoint = -2;
+			while (digitsBeforePoint < 7 && magnitude >= ((digitsBeforePoint < 0)
+					? 1 / POWERS_OF_TEN[-digitsBeforePoint] : POWERS_OF_TEN[digitsBeforePoint]))
+				++digitsBeforePoint;
+			var low = 0;
+			var high = 17 - digitsBeforePoint;
+			var digits = shortest(center, lower, upper, inclusive, shift, high);
+			if (digits < 0) {
+				write(Double.toString(value));
+				return;
+			}
+			// fewer fractional digits never work once some count fails, so the valid counts are a suffix;
+			// most computed values need all 17 digits, which the first probe settles
+			if (high > 0) {
+				final var candidate = shortest(center, lower, upper, inclusive, shift, high - 1);
+				if (candidate < 0)
+					low = high;
+				else {
+					high = high - 1;
+					digits = candidate;
+				}
+			}
+			while (low < high) {
+				final var middle = (low + high) >>> 1;
+				final var candidate = shortest(center, lower, upper, inclusive, shift, middle);
+				if (candidate >= 0) {
+					high = middle;
+					digits = candidate;
+				} else {
+					low = middle + 1;
+				}
+			}
+
+			// put all the digits, at least one of them before the point, then open up the point between them
+			var length = high + 1;
+			while (length < 17 && digits >= LONG_POWERS_OF_TEN[length])
+				++length;
+			ensure(length + 3);
+			if (value < 0)
+				buffer[used++] = '-';
+			putDigits(digits, length);
+			if (high == 0) {
+				buffer[used++] = '.';
+				buffer[used++] = '0';
+				return;
+			}
+			System.arraycopy(buffer, used - high, buffer, used - high + 1, high);
+			buffer[used - high] = '.';
+			++used;
+		}
+
+		/**
+		 * @return The integer closest to {@code center * 10^k / 2^shift} (ties to
+		 *         even) that lies between {@code lower} and {@code upper} scaled
+		 *         the same way, or the other neighbour of that quotient if only it
+		 *         does, or -1 if neither does
+		 */
+		private static long shortest(long center, long lower, long upper, boolean inclusive, int shift, int k) {
+			final var power = LONG_POWERS_OF_TEN[k];
+			final var floor = quotient(center, power, shift);
+			final var remainder = remainder(center, power, shift);
+			if (remainder == 0)
+				return floor;
+			final var lowerFloor = quotient(lower, power, shift);
+			final var lowerExact = remainder(lower, power, shift) == 0;
+			final var upperFloor = quotient(upper, power, shift);
+			final var upperExact = remainder(upper, power, shift) == 0;
+			final var down = floor > lowerFloor || floor == lowerFloor && lowerExact && inclusive;
+			final var up = floor + 1 < upperFloor || floor + 1 == upperFloor && (!upperExact || inclusive);
+			final var half = Long.compareUnsigned(remainder, 1L << (shift - 1));
+			final var preferUp = half > 0 || half == 0 && (floor & 1) != 0;
+			if (preferUp)
+				return up ? floor + 1 : down ? floor : -1;
+			return down ? floor : up ? floor + 1 : -1;
+		}
+
+		/** @return {@code floor(n * power / 2^shift)}, with {@code power} unsigned */
+		private static long quotient(long n, long power, int shift) {
+			final var high = Math.unsignedMultiplyHigh(n, power);
+			final var low = n * power;
+			return (shift == 64) ? high : high << (64 - shift) | low >>> shift;
+		}
+
+		/** @return {@code n * power mod 2^shift}, unsigned */
+		private static long remainder(long n, long power, int shift) {
+			final var low = n * power;
+			return (shift == 64) ? low : low & ((1L << shift) - 1);
+		}
+
+		void flush() throws IOException {
+			out.write(buffer, 0, used);
+			used = 0;
+			out.flush();
+		}
+	}
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+	};
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	/**
+	 * Finds ',', '\n' and '\r' in eight bytes at once. The lowest set bit of the
+	 * result is the high bit of the first such byte (little-endian order); bits
+	 * above it may be spurious.
+	 */
+	private static long delimiters(long word) {
+		final var comma = word ^ (ONES * ',');
+		final var newline = word ^ (ONES * '\n');
+		final var carriageReturn = word ^ (ONES * '\r');
+		return ((comma - ONES) & ~comma | (newline - ONES) & ~newline | (carriageReturn - ONES) & ~carriageReturn) & HIGHS;
+	}
+
+	/** One pass over a mapped file. */
+	private final class Scan {
+		private final MappedFile file;
+		private final long end;
+		private final Output out;
+		/** Inferred LONG columns to read as DOUBLE instead */
+		private final Set<String> widened;
+		private long position;
+		private long line;
+
+		// bounds of the last field read by nextField
+		private long fieldStart, fieldEnd;
+
+		Scan(MappedFile file, Output out, Set<String> widened) {
+			this.file = file;
+			this.end = file.size();
+			this.out = out;
+			this.widened = widened;
+		}
+
+		private byte at(long i) {
+			return file.get(i);
+		}
+
+		private boolean atLineEnd() {
+			if (position >= end)
+				return true;
+			final var b = at(position);
+			return b == '\n' || b == '\r';
+		}
+
+		private void skipLineEnd() {
+			if (position < end && at(position) == '\r')
+				++position;
+			if (position < end && at(position) == '\n')
+				++position;
+		}
+
+		/**
+		 * Reads the field at {@code position} into {@code fieldStart..fieldEnd}
+		 * (without quotes) and leaves {@code position} on the delimiter or line end.
+		 *
+		 * @return {@code true} if a ',' follows
+		 */
+		private boolean nextField() {
+			if (position < end && at(position) == '"') {
+				fieldStart = ++position;
+				while (true) {
+					if (position >= end)
+						throw new CsvException("line " + line + ": unterminated quoted field");
+					if (at(position) == '"') {
+						if (position + 1 < end && at(position + 1) == '"') {
+							position += 2;
+							continue;
+						}
+						break;
+					}
+					++position;
+				}
+				fieldEnd = position++;
+			} else {
+				var p = position;
+				fieldStart = p;
+				scan: {
+					for (; p + Long.BYTES <= end; p += Long.BYTES) {
+						final var hits = delimiters(file.getLong(p));
+						if (hits != 0) {
+							p += Long.numberOfTrailingZeros(hits) >>> 3;
+							break scan;
+						}
+					}
+					for (; p < end; ++p) {
+						final var b = at(p);
+						if (b == ',' || b == '\n' || b == '\r')
+							break;
+					}
+				}
+				fieldEnd = position = p;
+			}
+			if (position < end && at(position) == ',') {
+				++position;
+				return true;
+			}
+			if (!atLineEnd())
+				throw new CsvException("line " + line + ": unexpected character after quoted field");
+			return false;
+		}
+
+		private String text(long from, long to) {
+			final var bytes = new byte[(int) (to - from)];
+			file.get(from, bytes, 0, bytes.length);
+			return new String(bytes, StandardCharsets.UTF_8).trim();
+		}
+
+		/** Reads the remaining fields of the current line as strings; header and type inference only. */
+		private List<String> readLine() {
+			final var fields = new ArrayList<String>();
+			boolean more;
+			do {
+				more = nextField();
+				fields.add(text(fieldStart, fieldEnd).replace("\"\"", "\""));
+			} while (more);
+			skipLineEnd();
+			return fields;
+		}
+
+		Summary run() throws IOException {
+			// UTF-8 byte order mark
+			if (end >= 3 && at(0) == (byte) 0xEF && at(1) == (byte) 0xBB && at(2) == (byte) 0xBF)
+				position = 3;
+			++line;
+			final var headerStart = position;
+			final var headerEnd = lineEnd(position);
+			final var columns = readLine();
+			final var columnIndex = new HashMap<String, Integer>();
+			for (var i = 0; i < columns.size(); ++i)
+				columnIndex.put(columns.get(i), i);
+
+			final var types = new StaticType[columns.size()];
+			final var firstRow = position;
+			if (position < end) {
+				final var first = readLine();
+				for (var i = 0; i < types.length && i < first.size(); ++i) {
+					types[i] = inferType(first.get(i));
+					if (types[i] == StaticType.LONG && widened.contains(columns.get(i)))
+						types[i] = StaticType.DOUBLE;
+				}
+				position = firstRow;
+			}
+			for (var i = 0; i < types.length; ++i)
+				if (declaredTypes.containsKey(columns.get(i)))
+					types[i] = declaredTypes.get(columns.get(i));
+			final var typeMap = new HashMap<String, StaticType>();
+			for (var i = 0; i < types.length; ++i)
+				if (types[i] != null)
+					typeMap.put(columns.get(i), types[i]);
+
+			final var needed = new boolean[columns.size()];
+			final var filterExpression = (filter == null) ? null : compile("filter", filter, typeMap);
+			if (filterExpression != null && filterExpression.resultType() != StaticType.BOOLEAN)
+				throw new CsvException("filter has type " + filterExpression.resultType() + ", not BOOLEAN");
+			final var filterSlots = (filterExpression == null) ? null : slots(filterExpression, columnIndex, needed);
+			final var projected = new TypedExpression[projections.size()];
+			final var projectedSlots = new int[projected.length][];
+			final var statistics = new StreamingStatistics[projected.length];
+			for (var i = 0; i < projected.length; ++i) {
+				projected[i] = compile("projection " + (i + 1), projections.get(i), typeMap);
+				projectedSlots[i] = slots(projected[i], columnIndex, needed);
+				statistics[i] = new StreamingStatistics();
+			}
+
+			// header
+			if (projected.length == 0) {
+				out.write(file, headerStart, headerEnd);
+			} else {
+				for (var i = 0; i < projected.length; ++i) {
+					if (i > 0)
+						out.write((byte) ',');
+					out.write(quote(projections.get(i)));
+				}
+			}
+			out.write((byte) '\n');
+
+			final var frame = new long[columns.size()];
+			var depth = (filterExpression == null) ? 0 : filterExpression.stackDepth();
+			for (final var expression : projected)
+				depth = Math.max(depth, expression.stackDepth());
+			final var stack = new long[depth];
+			long rows = 0, written = 0;
+			while (position < end) {
+				++line;
+				if (atLineEnd()) {
+					skipLineEnd();
+					continue;
+				}
+				final var lineStart = position;
+				readRow(columns, types, needed, frame);
+				final var lineEnd = position;
+				skipLineEnd();
+				++rows;
+
+				if (filterExpression != null && filterExpression.evaluateRaw(frame, filterSlots, stack) == 0)
+					continue;
+				++written;
+				if (projected.length == 0)
+					out.write(file, lineStart, lineEnd);
+				else
+					writeProjections(projected, projectedSlots, frame, stack, statistics);
+				out.write((byte) '\n');
+			}
+			out.flush();
+			return new Summary(rows, written, List.of(statistics));
+		}
+
+		/** Parses the needed fields of the row at {@code position} into {@code frame}. */
+		private void readRow(List<String> columns, StaticType[] types, boolean[] needed, long[] frame) {
+			var column = 0;
+			boolean more;
+			do {
+				more = nextField();
+				if (column < needed.length && needed[column])
+					frame[column] = parse(types[column], columns.get(column));
+				++column;
+			} while (more);
+			if (column != needed.length)
+				throw new CsvException("line " + line + ": expected " + needed.length + " fields, found " + column);
+		}
+
+		private void writeProjections(TypedExpression[] projected, int[][] slots, long[] frame, long[] stack,
+				StreamingStatistics[] statistics) throws IOException {
+			for (var i = 0; i < projected.length; ++i) {
+				if (i > 0)
+					out.write((byte) ',');
+				final var raw = projected[i].evaluateRaw(frame, slots[i], stack);
+				switch (projected[i].resultType()) {
+					case LONG -> {
+						out.write(raw);
+						statistics[i].accept((double) raw);
+					}
+					case DOUBLE -> {
+						final var value = Double.longBitsToDouble(raw);
+						out.write(value);
+						statistics[i].accept(value);
+					}
+					case BOOLEAN -> out.write((raw != 0) ? "true" : "false");
+				}
+			}
+		}
+
+		private long lineEnd(long from) {
+			var i = from;
+			while (i < end && at(i) != '\n' && at(i) != '\r')
+				++i;
+			return i;
+		}
+
+		private long parse(StaticType type, String column) {
+			var from = fieldStart;
+			var to = fieldEnd;
+			while (from < to && at(from) == ' ')
+				++from;
+			while (to > from && at(to - 1) == ' ')
+				--to;
+			if (type == null)
+				throw new CsvException("line " + line + ": column " + column + " has no numeric or boolean type");
+			return switch (type) {
+				case LONG -> parseLong(from, to, column);
+				case DOUBLE -> parseDouble(from, to, column);
+				case BOOLEAN -> parseBoolean(from, to, column);
+			};
+		}
+
+		private long parseLong(long from, long to, String column) {
+			var i = from;
+			final var negative = i < to && at(i) == '-';
+			if (i < to && (at(i) == '-' || at(i) == '+'))
+				++i;
+			if (i == to || to - i > 18)
+				return parseSlowly(from, to, column, StaticType.LONG);
+			var value = 0L;
+			for (; i < to; ++i) {
+				final var digit = at(i) - '0';
+				if (digit < 0 || digit > 9)
+					return parseSlowly(from, to, column, StaticType.LONG);
+				value = value * 10 + digit;
+			}
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Decimal fast path: a mantissa of up to 15 significant digits and a small
+		 * power of ten are both exact doubles, so one multiply or divide rounds
+		 * correctly. Anything else goes through {@link Double#parseDouble}.
+		 *
+		 * @return The raw bits of the double
+		 */
+		private long parseDouble(long from, long to, String column) {
+			var i = from;
+			final var negative = i < to && at(i) == '-';
+			if (i < to && (at(i) == '-' || at(i) == '+'))
+				++i;
+			var mantissa = 0L;
+			var digits = 0;
+			var exponent = 0;
+			var sawDigit = false;
+			// each byte is read once; this loop is most of the cost of a DOUBLE column
+			for (; i < to; ++i) {
+				final var digit = at(i) - '0';
+				if (digit < 0 || digit > 9)
+					break;
+				sawDigit = true;
+				if (mantissa == 0 && digit == 0)
+					continue;
+				if (++digits > 15)
+					return parseSlowly(from, to, column, StaticType.DOUBLE);
+				mantissa = mantissa * 10 + digit;
+			}
+			if (i < to && at(i) == '.') {
+				for (++i; i < to; ++i) {
+					final var digit = at(i) - '0';
+					if (digit < 0 || digit > 9)
+						break;
+					sawDigit = true;
+					--exponent;
+					if (mantissa == 0 && digit == 0)
+						continue;
+					if (++digits > 15)
+						return parseSlowly(from, to, column, StaticType.DOUBLE);
+					mantissa = mantissa * 10 + digit;
+				}
+			}
+			if (sawDigit && i < to && (at(i) == 'e' || at(i) == 'E')) {
+				++i;
+				final var negativeExponent = i < to && at(i) == '-';
+				if (i < to && (at(i) == '-' || at(i) == '+'))
+					++i;
+				if (i == to || to - i > 3)
+					return parseSlowly(from, to, column, StaticType.DOUBLE);
+				var e = 0;
+				for (; i < to && at(i) >= '0' && at(i) <= '9'; ++i)
+					e = e * 10 + (at(i) - '0');
+				exponent += negativeExponent ? -e : e;
+			}
+			if (!sawDigit || i != to || exponent < -22 || exponent > 22)
+				return parseSlowly(from, to, column, StaticType.DOUBLE);
+			final var value = (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			return Double.doubleToRawLongBits(negative ? -value : value);
+		}
+
+		private long parseBoolean(long from, long to, String column) {
+			if (matches(from, to, "true"))
+				return 1;
+			if (matches(from, to, "false"))
+				return 0;
+			throw notOfType(from, to, column, StaticType.BOOLEAN);
+		}
+
+		private boolean matches(long from, long to, String ascii) {
+			if (to - from != ascii.length())
+				return false;
+			for (var i = 0; i < ascii.length(); ++i)
+				if (at(from + i) != ascii.charAt(i))
+					return false;
+			return true;
+		}
+
+		/** Handles whatever the fast paths decline; raw long or double bits. */
+		private long parseSlowly(long from, long to, String column, StaticType type) {
+			final var text = text(from, to);
+			try {
+				return (type == StaticType.LONG) ? Long.parseLong(text)
+						: Double.doubleToRawLongBits(Double.parseDouble(text));
+			} catch (NumberFormatException e) {
+				if (type == StaticType.LONG && !declaredTypes.containsKey(column) && inferType(text) == StaticType.DOUBLE)
+					throw new WidenColumn(column);
+				throw notOfType(from, to, column, type);
+			}
+		}
+
+		private CsvException notOfType(long from, long to, String column, StaticType type) {
+			final var hint = declaredTypes.containsKey(column) ? "" : " (inferred from the first row; declare its type)";
+			return new CsvException("line " + line + ": '" + text(from, Math.min(to, from + 64)) + "' in column "
+					+ column + " is not a " + type + hint);
+		}
+	}
+
+	private static StaticType inferType(String text) {
+		if (text.equals("true") || text.equals("false"))
+			return StaticType.BOOLEAN;
+		try {
+			Long.parseLong(text);
+			return StaticType.LONG;
+		} catch (NumberFormatException e) {
+			// not an integer
+		}
+		try {
+			Double.parseDouble(text);
+			return StaticType.DOUBLE;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static TypedExpression compile(String what, String source, Map<String, StaticType> types) {
+		final var parsed = MathParser.tryParse(source);
+		if (!parsed.ok())
+			throw new CsvException(what + ": " + parsed.error());
+		try {
+			return TypedExpression.compile(parsed.postfix(), types);
+		} catch (TypedExpression.TypeCheckException e) {
+			throw new CsvException(what + ": " + e.getMessage());
+		}
+	}
+
+	/** Maps an expression's identifiers to column indices, marking those columns as needed. */
+	private static int[] slots(TypedExpression expression, Map<String, Integer> columnIndex, boolean[] needed) {
+		final var identifiers = expression.identifiers();
+		final var slots = new int[identifiers.size()];
+		for (var i = 0; i < slots.length; ++i) {
+			final var index = columnIndex.get(identifiers.get(i));
+			if (index == null)
+				throw new CsvException("no column named " + identifiers.get(i));
+			slots[i] = index;
+			needed[index] = true;
+		}
+		return slots;
+	}
+
+	private static String quote(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0)
+			return field;
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * {@code java math_interpreter.CsvEvaluator input.csv output.csv [--where predicate] [projection...]}
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: CsvEvaluator input.csv output.csv [--where predicate] [projection...]");
+			System.exit(2);
+		}
+		final var rest = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+		String where = null;
+		final var at = rest.indexOf("--where");
+		if (at >= 0 && at + 1 < rest.size()) {
+			where = rest.get(at + 1);
+			rest.subList(at, at + 2).clear();
+		}
+		final var start = System.nanoTime();
+		final var summary = new CsvEvaluator(where, rest).run(Path.of(args[0]), Path.of(args[1]));
+		System.err.printf("%d rows, %d written in %.0f ms%n", summary.rows(), summary.written(),
+				(System.nanoTime() - start) / 1e6);
+		for (var i = 0; i < rest.size(); ++i)
+			if (summary.projections().get(i).count() > 0)
+				System.err.println(rest.get(i) + ": " + summary.projections().get(i));
+	}
+}
@@ -0,0 +1,40 @@
+package math_interpreter;
+
+/**
+ * A syntax error reported as a value instead of an exception.
+ *
+ * @param offset   Character offset into the source
+ * @param line     1-based line of {@code offset}
+ * @param column   1-based column of {@code offset}
+ * @param message  What went wrong
+ * @param expected What would have been accepted at {@code offset}, or
+ *                 {@code null} if there is nothing useful to say
+ */
+record Diagnostic(int offset, int line, int column, String message, String expected) {
+	/**
+	 * Creates a diagnostic at {@code offset}, working out its line and column.
+	 * Only called once an error is known, so the scan costs nothing on valid
+	 * input.
+	 */
+	static Diagnostic at(String source, int offset, String message, String expected) {
+		var line = 1;
+		var lineStart = 0;
+		final var end = Math.min(offset, source.length());
+		for (var i = 0; i < end; ++i) {
+			if (source.charAt(i) == '\n') {
+				++line;
+				lineStart = i + 1;
+			}
+		}
+		return new Diagnostic(offset, line, offset - lineStart + 1, message, expected);
+	}
+
+	@Override
+	public String toString() {
+		final var sb = new StringBuilder()
+			.append(line).append(':').append(column).append(": ").append(message);
+		if (expected != null)
+			sb.append(" (expected ").append(expected).append(')');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,91 @@
+package math_interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures {@link MathParser#tryParse} on a corpus where half of the inputs
+ * are malformed, reporting the cost of accepting and of rejecting separately.
+ * Run with {@code java math_interpreter.DiagnosticsBenchmark [corpusSize]}.
+ */
+final class DiagnosticsBenchmark {
+	private DiagnosticsBenchmark() {}
+
+	private static final String[] OPERATORS = { " + ", " - ", " * ", " / ", " ** ", " & ", " < ", " == " };
+
+	private static String validExpression(Random random) {
+		final var sb = new StringBuilder();
+		final var terms = 3 + random.nextInt(8);
+		for (var i = 0; i < terms; ++i) {
+			if (i > 0)
+				sb.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+			switch (random.nextInt(4)) {
+				case 0 -> sb.append(random.nextInt(1000));
+				case 1 -> sb.append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+				case 2 -> sb.append("x").append(random.nextInt(10));
+				default -> sb.append("(y - ").append(random.nextInt(50)).append(')');
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Breaks a valid expression in one of the ways users typically do. */
+	private static String corrupt(Random random, String valid) {
+		final var at = random.nextInt(valid.length());
+		return switch (random.nextInt(5)) {
+			case 0 -> valid + " +";
+			case 1 -> "(" + valid;
+			case 2 -> valid.substring(0, at) + " $ " + valid.substring(at);
+			case 3 -> valid.substring(0, at) + " * * " + valid.substring(at);
+			default -> valid + " 1.2.3";
+		};
+	}
+
+	private static long run(List<String> inputs, int rounds) {
+		var sink = 0;
+		final var start = System.nanoTime();
+		for (var r = 0; r < rounds; ++r)
+			for (final var input : inputs)
+				sink += MathParser.tryParse(input).ok() ? 1 : 0;
+		final var elapsed = System.nanoTime() - start;
+		if (sink < 0)
+			System.out.println(sink);
+		return elapsed;
+	}
+
+	public static void main(String[] args) {
+		final var size = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+		final var random = new Random(7);
+		final var valid = new ArrayList<String>(size / 2);
+		final var invalid = new ArrayList<String>(size / 2);
+		for (var i = 0; i < size / 2; ++i) {
+			final var expression = validExpression(random);
+			valid.add(expression);
+			invalid.add(corrupt(random, expression));
+		}
+		final var mixed = new ArrayList<String>(size);
+		for (var i = 0; i < size / 2; ++i) {
+			mixed.add(valid.get(i));
+			mixed.add(invalid.get(i));
+		}
+
+		// warm up
+		for (var i = 0; i < 5; ++i)
+			run(mixed, 1);
+
+		final var rounds = 10;
+		final var validNs = run(valid, rounds) / ((double) rounds * valid.size());
+		final var invalidNs = run(invalid, rounds) / ((double) rounds * invalid.size());
+		final var mixedNs = run(mixed, rounds) / ((double) rounds * mixed.size());
+
+		var rejected = 0;
+		for (final var input : invalid)
+			if (!MathParser.tryParse(input).ok())
+				++rejected;
+
+		System.out.printf("valid   %8.1f ns/input%n", validNs);
+		System.out.printf("invalid %8.1f ns/input (%d/%d rejected)%n", invalidNs, rejected, invalid.size());
+		System.out.printf("mixed   %8.1f ns/input (50%% invalid)%n", mixedNs);
+	}
+}
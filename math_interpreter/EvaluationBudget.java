@@ -0,0 +1,62 @@
+package math_interpreter;
+
+import java.time.Duration;
+
+/**
+ * Optional limits on a single evaluation. Every limit defaults to unlimited;
+ * use the {@code with*} methods to tighten individual ones.
+ *
+ * @param maxSteps    Maximum number of postfix tokens executed
+ * @param timeout     Wall-clock time allowed, measured from the start of the
+ *                    evaluation
+ * @param maxDepth    Maximum operand stack height plus nested evaluation depth
+ * @param maxElements Maximum number of matrix elements allocated
+ */
+record EvaluationBudget(long maxSteps, Duration timeout, int maxDepth, long maxElements) {
+	static final EvaluationBudget UNLIMITED = new EvaluationBudget(Long.MAX_VALUE, null, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+	enum Resource {
+		STEPS, DEADLINE, DEPTH, ELEMENTS;
+	}
+
+	static class BudgetExceededException extends RuntimeException {
+		private final Resource resource;
+		private final long limit;
+
+		BudgetExceededException(Resource resource, long limit) {
+			super("evaluation exceeded its " + resource.name().toLowerCase() + " budget of " + limit);
+			this.resource = resource;
+			this.limit = limit;
+		}
+
+		Resource resource() {
+			return resource;
+		}
+
+		long limit() {
+			return limit;
+		}
+
+		// budget failures are expected outcomes, not bugs: skip the stack walk
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	EvaluationBudget withMaxSteps(long maxSteps) {
+		return new EvaluationBudget(maxSteps, timeout, maxDepth, maxElements);
+	}
+
+	EvaluationBudget withTimeout(Duration timeout) {
+		return new EvaluationBudget(maxSteps, timeout, maxDepth, maxElements);
+	}
+
+	EvaluationBudget withMaxDepth(int maxDepth) {
+		return new EvaluationBudget(maxSteps, timeout, maxDepth, maxElements);
+	}
+
+	EvaluationBudget withMaxElements(long maxElements) {
+		return new EvaluationBudget(maxSteps, timeout, maxDepth, maxElements);
+	}
+}
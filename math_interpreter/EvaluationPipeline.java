@@ -0,0 +1,326 @@
+package math_interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Lex, compile and evaluate stages connected with {@link Flow}, each with a
+ * bounded buffer. A stage only requests as many items from its upstream as it
+ * has buffer space for, and hands items on only as its downstream requests
+ * them, so a slow evaluate stage throttles compilation, which throttles
+ * lexing, which makes {@link #submit} block: input can never outrun evaluation
+ * by more than the sum of the buffers.
+ *
+ * <p>
+ * The stages can be replicated over several lanes. A job's lane is chosen from
+ * its session key, so all jobs of one session go through the same lane, whose
+ * stages each run on a single thread: they keep their order (and see each
+ * other's assignments), while different sessions proceed in parallel.
+ */
+final class EvaluationPipeline implements AutoCloseable {
+	/**
+	 * One expression to evaluate for a session.
+	 *
+	 * @param session  The session whose variables the expression uses
+	 * @param sequence Caller-assigned sequence number, echoed in the result
+	 */
+	record Job(Object session, long sequence, String source) {}
+
+	/**
+	 * Outcome of a {@link Job}. {@code error} is set for syntax errors and
+	 * {@code failure} for exceptions thrown during evaluation; if both are
+	 * {@code null}, {@code value} is the result.
+	 */
+	record Result(Object session, long sequence, Object value, Diagnostic error, RuntimeException failure) {}
+
+	private record Lexed(Job job, MathLexer2.LexResult lexed) {}
+
+	private record Compiled(Job job, MathParser.ParseResult parsed) {}
+
+	/**
+	 * A {@link Flow.Processor} that maps items with {@code function} on its own
+	 * thread. It requests {@code bufferSize} items from upstream to fill its
+	 * buffer, then one more for each item it hands on, and it only hands items on
+	 * while its subscriber has outstanding demand. Nothing blocks: a subscriber
+	 * that stops requesting leaves the buffer full, and the stage stops
+	 * requesting in turn.
+	 */
+	private static final class Stage<T, R> implements Flow.Processor<T, R>, Flow.Subscription {
+		private final ExecutorService executor;
+		private final int bufferSize;
+		private final Function<T, R> function;
+		private final Queue<T> buffer = new ConcurrentLinkedQueue<>();
+		private final AtomicLong demand = new AtomicLong();
+		private volatile Flow.Subscription upstream;
+		private volatile Flow.Subscriber<? super R> downstream;
+		private volatile boolean done, cancelled;
+		private volatile Throwable failure;
+		/** Only read and written by {@link #drain} */
+		private boolean terminated;
+
+		Stage(ExecutorService executor, int bufferSize, Function<T, R> function) {
+			this.executor = executor;
+			this.bufferSize = bufferSize;
+			this.function = function;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super R> subscriber) {
+			if (downstream != null)
+				throw new IllegalStateException("a stage has a single subscriber");
+			downstream = subscriber;
+			executor.execute(() -> {
+				subscriber.onSubscribe(this);
+				drain();
+			});
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			upstream = subscription;
+			subscription.request(bufferSize);
+		}
+
+		@Override
+		public void onNext(T item) {
+			buffer.add(item);
+			executor.execute(this::drain);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			failure = throwable;
+			done = true;
+			executor.execute(this::drain);
+		}
+
+		@Override
+		public void onComplete() {
+			done = true;
+			executor.execute(this::drain);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				// §3.9: the error goes to the subscriber, not through this stage's own onError, which would
+				// wait behind buffered items that the subscriber has no demand for
+				final var error = new IllegalArgumentException("non-positive request " + n);
+				cancel();
+				executor.execute(() -> {
+					if (terminated)
+						return;
+					terminated = true;
+					downstream.onError(error);
+				});
+				return;
+			}
+			demand.accumulateAndGet(n, (a, b) -> (a + b < 0) ? Long.MAX_VALUE : a + b);
+			executor.execute(this::drain);
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			final var subscription = upstream;
+			if (subscription != null)
+				subscription.cancel();
+			buffer.clear();
+		}
+
+		/** Hands buffered items on while there is demand; runs on the stage's thread. */
+		private void drain() {
+			final var subscriber = downstream;
+			if (subscriber == null || terminated || cancelled)
+				return;
+			while (demand.get() > 0 && !cancelled) {
+				final var item = buffer.poll();
+				if (item == null)
+					break;
+				final R result;
+				try {
+					result = function.apply(item);
+				} catch (RuntimeException | Error e) {
+					terminated = true;
+					upstream.cancel();
+					buffer.clear();
+					subscriber.onError(e);
+					return;
+				}
+				demand.decrementAndGet();
+				subscriber.onNext(result);
+				upstream.request(1);
+			}
+			if (done && buffer.isEmpty() && !cancelled) {
+				terminated = true;
+				if (failure != null)
+					subscriber.onError(failure);
+				else
+					subscriber.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Receives the results of one lane and forwards them to the shared results
+	 * publisher. This is the one place that relies on a blocking
+	 * {@link SubmissionPublisher#submit}, because that publisher has no way to
+	 * signal demand back; it blocks only while an outside subscriber lags by a
+	 * full buffer. The last lane to finish, normally or not, closes the pipeline.
+	 */
+	private final class Sink implements Flow.Subscriber<Result> {
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(bufferSize);
+		}
+
+		@Override
+		public void onNext(Result item) {
+			results.submit(item);
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			laneFailure.compareAndSet(null, throwable);
+			laneClosed();
+		}
+
+		@Override
+		public void onComplete() {
+			laneClosed();
+		}
+
+		private void laneClosed() {
+			if (openLanes.decrementAndGet() != 0)
+				return;
+			final var failure = laneFailure.get();
+			if (failure != null)
+				results.closeExceptionally(failure);
+			else
+				results.close();
+			// not the results executor: subscribers may still be catching up on buffered results
+			executors.forEach(ExecutorService::shutdown);
+		}
+	}
+
+	private final Function<Object, MathParser> sessions;
+	private final List<SubmissionPublisher<Job>> laneInputs = new ArrayList<>();
+	private final SubmissionPublisher<Result> results;
+	private final List<ExecutorService> executors = new ArrayList<>();
+	private final AtomicInteger openLanes;
+	private final AtomicReference<Throwable> laneFailure = new AtomicReference<>();
+	private final int bufferSize;
+
+	/**
+	 * @param sessions   Returns the parser (and thus the variables) of a session
+	 *                   key; called only from that session's lane
+	 * @param lanes      Number of parallel lanes
+	 * @param bufferSize Capacity of each stage's buffer
+	 */
+	EvaluationPipeline(Function<Object, MathParser> sessions, int lanes, int bufferSize) {
+		this.sessions = sessions;
+		this.bufferSize = bufferSize;
+		openLanes = new AtomicInteger(lanes);
+		results = new SubmissionPublisher<>(newResultsExecutor(), bufferSize);
+
+		for (var lane = 0; lane < lanes; ++lane) {
+			final var input = new SubmissionPublisher<Job>(newExecutor(), bufferSize);
+			final var lex = new Stage<Job, Lexed>(newExecutor(), bufferSize,
+					job -> new Lexed(job, MathLexer2.tryLex(job.source())));
+			final var compile = new Stage<Lexed, Compiled>(newExecutor(), bufferSize, this::compile);
+			final var evaluate = new Stage<Compiled, Result>(newExecutor(), bufferSize, this::evaluate);
+			input.subscribe(lex);
+			lex.subscribe(compile);
+			compile.subscribe(evaluate);
+			evaluate.subscribe(new Sink());
+			laneInputs.add(input);
+		}
+	}
+
+	private ExecutorService newExecutor() {
+		final var executor = Executors.newSingleThreadExecutor(runnable -> {
+			final var thread = new Thread(runnable, "evaluation-pipeline-" + executors.size());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executors.add(executor);
+		return executor;
+	}
+
+	/**
+	 * The results publisher delivers to outside subscribers for as long as they
+	 * keep requesting, well after the lanes have closed, so its executor is never
+	 * shut down. Instead its single thread exits after a second without work and
+	 * a new one starts on the next request.
+	 */
+	private static ExecutorService newResultsExecutor() {
+		return new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			final var thread = new Thread(runnable, "evaluation-pipeline-results");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private int laneOf(Object session) {
+		return Math.floorMod(session.hashCode(), laneInputs.size());
+	}
+
+	private Compiled compile(Lexed lexed) {
+		return new Compiled(lexed.job(), MathParser.tryParse(lexed.job().source(), lexed.lexed()));
+	}
+
+	private Result evaluate(Compiled compiled) {
+		final var job = compiled.job();
+		final var parsed = compiled.parsed();
+		if (!parsed.ok())
+			return new Result(job.session(), job.sequence(), null, parsed.error(), null);
+		try {
+			final var value = sessions.apply(job.session()).evaluate(parsed);
+			return new Result(job.session(), job.sequence(), value, null, null);
+		} catch (RuntimeException e) {
+			return new Result(job.session(), job.sequence(), null, null, e);
+		}
+	}
+
+	/**
+	 * Offers a job to the pipeline, blocking while the buffers of its lane are
+	 * full.
+	 */
+	void submit(Job job) {
+		laneInputs.get(laneOf(job.session())).submit(job);
+	}
+
+	/**
+	 * Subscribes to results. Results of one session arrive in submission order;
+	 * results of different sessions may interleave.
+	 */
+	void subscribe(Flow.Subscriber<? super Result> subscriber) {
+		results.subscribe(subscriber);
+	}
+
+	/**
+	 * Stops accepting jobs. Jobs already submitted still flow through; the
+	 * results publisher completes once every lane has drained.
+	 */
+	@Override
+	public void close() {
+		laneInputs.forEach(SubmissionPublisher::close);
+	}
+}
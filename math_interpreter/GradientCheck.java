@@ -0,0 +1,98 @@
+package math_interpreter;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Derivative checks for {@link GradientExpression}: at each sample point, the
+ * value and {@code d/dx} of every expression are compared with closed forms,
+ * and both partials with central differences of the untiered evaluator. Run
+ * with {@code java math_interpreter.GradientCheck}; exits with status 1 on
+ * failure.
+ */
+final class GradientCheck {
+	private GradientCheck() {}
+
+	/**
+	 * @param value The expression as a function of {@code x} and {@code y}
+	 * @param dx    Its closed-form derivative with respect to {@code x}
+	 */
+	private record Case(String source, DoubleBinaryOperator value, DoubleBinaryOperator dx) {}
+
+	private static final Case[] CASES = {
+		new Case("x * y", (x, y) -> x * y, (x, y) -> y),
+		new Case("x * x * x", (x, y) -> x * x * x, (x, y) -> 3 * x * x),
+		new Case("(x + 1) * (y - x)", (x, y) -> (x + 1) * (y - x), (x, y) -> y - 2 * x - 1),
+		new Case("x / y", (x, y) -> x / y, (x, y) -> 1 / y),
+		new Case("y / x", (x, y) -> y / x, (x, y) -> -y / (x * x)),
+		new Case("(x + y) / (x * y)", (x, y) -> (x + y) / (x * y), (x, y) -> -1 / (x * x)),
+		new Case("x ** 3", (x, y) -> Math.pow(x, 3), (x, y) -> 3 * x * x),
+		new Case("x ** y", Math::pow, (x, y) -> y * Math.pow(x, y - 1)),
+		new Case("y ** x", (x, y) -> Math.pow(y, x), (x, y) -> Math.pow(y, x) * Math.log(y)),
+		new Case("x ** x", (x, y) -> Math.pow(x, x), (x, y) -> Math.pow(x, x) * (Math.log(x) + 1)),
+		new Case("sin(x * y)", (x, y) -> Math.sin(x * y), (x, y) -> y * Math.cos(x * y)),
+		new Case("exp(sin(x))", (x, y) -> Math.exp(Math.sin(x)), (x, y) -> Math.cos(x) * Math.exp(Math.sin(x))),
+		new Case("log(x * x + y)", (x, y) -> Math.log(x * x + y), (x, y) -> 2 * x / (x * x + y)),
+		new Case("sin(log(x)) / x", (x, y) -> Math.sin(Math.log(x)) / x,
+				(x, y) -> (Math.cos(Math.log(x)) - Math.sin(Math.log(x))) / (x * x)),
+		new Case("exp(x) * log(y) ** 2", (x, y) -> Math.exp(x) * Math.pow(Math.log(y), 2),
+				(x, y) -> Math.exp(x) * Math.pow(Math.log(y), 2)),
+		new Case("log(exp(x * y))", (x, y) -> x * y, (x, y) -> y),
+	};
+
+	/** Sample points {@code (x, y)}; all positive, so every case is defined at each */
+	private static final double[][] POINTS = {{0.5, 2.0}, {1.3, 0.7}, {2.0, 3.5}};
+
+	private static final double H = 1e-6;
+
+	private static boolean close(double actual, double expected, double tolerance) {
+		return Math.abs(actual - expected) <= tolerance * Math.max(1, Math.abs(expected));
+	}
+
+	private static double evaluate(MathParser parser, MathParser.ParseResult parsed, MapVariables variables,
+			double x, double y) {
+		variables.put("x", x);
+		variables.put("y", y);
+		return ((Number) parser.evaluate(parsed)).doubleValue();
+	}
+
+	public static void main(String[] args) {
+		var failed = false;
+		for (final var c : CASES) {
+			final var variables = new MapVariables();
+			final var parser = new MathParser(variables);
+			final var parsed = MathParser.tryParse(c.source());
+			final var gradientExpression = MathParser.compileGradient(MathLexer2.tryLex(c.source()).tokens(), "x", "y");
+			final var gradient = new double[2];
+			String problem = null;
+
+			for (var p = 0; p < POINTS.length && problem == null; ++p) {
+				final var x = POINTS[p][0];
+				final var y = POINTS[p][1];
+				final var value = evaluate(parser, parsed, variables, x, y);
+				final var at = "at (" + x + ", " + y + "): ";
+				// the untiered evaluator is the reference for the value; evaluate() below sets x and y again
+				final var centralX = (evaluate(parser, parsed, variables, x + H, y)
+						- evaluate(parser, parsed, variables, x - H, y)) / (2 * H);
+				final var centralY = (evaluate(parser, parsed, variables, x, y + H)
+						- evaluate(parser, parsed, variables, x, y - H)) / (2 * H);
+				variables.put("x", x);
+				variables.put("y", y);
+				final var result = parser.evaluate(gradientExpression, gradient);
+
+				if (!close(result, c.value().applyAsDouble(x, y), 1e-12) || !close(result, value, 1e-12))
+					problem = at + "value " + result + ", expected " + c.value().applyAsDouble(x, y);
+				else if (!close(gradient[0], c.dx().applyAsDouble(x, y), 1e-12))
+					problem = at + "d/dx " + gradient[0] + ", closed form " + c.dx().applyAsDouble(x, y);
+				else if (!close(gradient[0], centralX, 1e-6))
+					problem = at + "d/dx " + gradient[0] + ", central difference " + centralX;
+				else if (!close(gradient[1], centralY, 1e-6))
+					problem = at + "d/dy " + gradient[1] + ", central difference " + centralY;
+			}
+
+			System.out.printf("%-22s %s%n", c.source(), (problem == null) ? "ok" : "FAIL: " + problem);
+			failed |= problem != null;
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,166 @@
+package math_interpreter;
+
+import java.util.List;
+
+/**
+ * Forward-mode automatic differentiation of a numeric expression. One call to
+ * {@link #evaluate} computes the value and its partial derivatives with respect
+ * to every variable named at compile time, carrying a tangent vector alongside
+ * each stack value.
+ *
+ * <p>
+ * Values and tangents live in primitive {@code double[]} stacks, so a full
+ * gradient costs roughly {@code 1 + n} flops per operation for {@code n}
+ * variables and allocates two arrays per evaluation. Everything is computed in
+ * {@code double}; {@code Long / Long} is real division here, not integer
+ * division.
+ */
+final class GradientExpression {
+	private final Token[] code;
+	private final String[] withRespectTo;
+	/** For identifier tokens, their index in {@code withRespectTo} (or -1) */
+	private final int[] variableIndex;
+	private final int maxStackDepth;
+
+	/**
+	 * @param postfixTokens Expression in postfix notation
+	 * @param withRespectTo Variables to differentiate with respect to; the
+	 *                      gradient is reported in this order
+	 * @throws IllegalArgumentException If the expression contains an operation
+	 *                                  that is not differentiable
+	 */
+	GradientExpression(List<Token> postfixTokens, String... withRespectTo) {
+		code = postfixTokens.toArray(new Token[0]);
+		this.withRespectTo = withRespectTo.clone();
+		variableIndex = new int[code.length];
+		var depth = 0;
+		var maxDepth = 0;
+		for (var i = 0; i < code.length; ++i) {
+			final var token = code[i];
+			variableIndex[i] = (token instanceof final Identifier identifier) ? indexOf(identifier.identifier) : -1;
+			switch (token) {
+				case final Operand o -> maxDepth = Math.max(maxDepth, ++depth);
+				case final BinaryArithmeticOperator o -> --depth;
+				case final UnaryArithmeticOperator o -> {}
+				case final BuiltinFunction f -> {}
+				default -> throw new IllegalArgumentException("cannot differentiate through " + token);
+			}
+		}
+		maxStackDepth = maxDepth;
+	}
+
+	int variableCount() {
+		return withRespectTo.length;
+	}
+
+	/**
+	 * @param gradient Receives {@code d(result)/d(withRespectTo[i])} at index
+	 *                 {@code i}; must have at least {@link #variableCount()}
+	 *                 elements
+	 * @return The value of the expression
+	 */
+	double evaluate(Variables variables, double[] gradient) {
+		final var n = withRespectTo.length;
+		final var values = new double[maxStackDepth];
+		// tangent of values[k] is tangents[k * n .. k * n + n)
+		final var tangents = new double[maxStackDepth * n];
+		var sp = 0;
+
+		for (var i = 0; i < code.length; ++i) {
+			final var token = code[i];
+
+			if (token instanceof final Operand operand) {
+				final var t = sp * n;
+				if (operand instanceof final Identifier identifier) {
+					values[sp] = toDouble(identifier.getValue(variables), identifier);
+					final var k = variableIndex[i];
+					for (var j = 0; j < n; ++j)
+						tangents[t + j] = (j == k) ? 1 : 0;
+				} else {
+					values[sp] = toDouble(operand.getValue(variables), operand);
+					for (var j = 0; j < n; ++j)
+						tangents[t + j] = 0;
+				}
+				++sp;
+				continue;
+			}
+
+			if (token instanceof final BinaryArithmeticOperator operator) {
+				final var bi = --sp;
+				final var ai = sp - 1;
+				final var a = values[ai];
+				final var b = values[bi];
+				final var ta = ai * n;
+				final var tb = bi * n;
+				switch (operator) {
+					case PLUS -> {
+						values[ai] = a + b;
+						for (var j = 0; j < n; ++j)
+							tangents[ta + j] += tangents[tb + j];
+					}
+					case MINUS -> {
+						values[ai] = a - b;
+						for (var j = 0; j < n; ++j)
+							tangents[ta + j] -= tangents[tb + j];
+					}
+					case TIMES -> {
+						values[ai] = a * b;
+						for (var j = 0; j < n; ++j)
+							tangents[ta + j] = tangents[ta + j] * b + a * tangents[tb + j];
+					}
+					case DIVIDE -> {
+						final var q = a / b;
+						values[ai] = q;
+						for (var j = 0; j < n; ++j)
+							tangents[ta + j] = (tangents[ta + j] - q * tangents[tb + j]) / b;
+					}
+					case POWER -> {
+						final var p = Math.pow(a, b);
+						values[ai] = p;
+						final var dBase = (b == 0) ? 0 : b * Math.pow(a, b - 1);
+						// only take the log when the exponent actually varies, so a <= 0 with a constant exponent works
+						var exponentVaries = false;
+						for (var j = 0; j < n; ++j)
+							exponentVaries |= tangents[tb + j] != 0;
+						final var dExponent = exponentVaries ? p * Math.log(a) : 0;
+						for (var j = 0; j < n; ++j)
+							tangents[ta + j] = dBase * tangents[ta + j] + dExponent * tangents[tb + j];
+					}
+				}
+				continue;
+			}
+
+			final var xi = sp - 1;
+			final var tx = xi * n;
+			if (token == UnaryArithmeticOperator.NEGATE) {
+				values[xi] = -values[xi];
+				for (var j = 0; j < n; ++j)
+					tangents[tx + j] = -tangents[tx + j];
+			} else if (token instanceof final BuiltinFunction function) {
+				final var x = values[xi];
+				final var fx = function.apply(x);
+				final var dfx = function.derivative(x, fx);
+				values[xi] = fx;
+				for (var j = 0; j < n; ++j)
+					tangents[tx + j] *= dfx;
+			}
+			// unary plus is the identity
+		}
+
+		System.arraycopy(tangents, (sp - 1) * n, gradient, 0, n);
+		return values[sp - 1];
+	}
+
+	private int indexOf(String identifier) {
+		for (var i = 0; i < withRespectTo.length; ++i)
+			if (withRespectTo[i].equals(identifier))
+				return i;
+		return -1;
+	}
+
+	private static double toDouble(Object value, Operand source) {
+		if (value instanceof final Number n)
+			return n.doubleValue();
+		throw new ClassCastException("cannot differentiate through non-numeric value of " + source);
+	}
+}
@@ -0,0 +1,93 @@
+package math_interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures bytes allocated per lex and per evaluation on a workload dominated
+ * by small numbers and a few recurring names, then floods the identifier table
+ * with distinct names from several threads to show that it stays bounded and
+ * that threads agree on interned tokens. Run with
+ * {@code java math_interpreter.InterningBenchmark [iterations] [threads]}.
+ */
+final class InterningBenchmark {
+	private InterningBenchmark() {}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static final String[] SOURCES = {
+		"total = price * quantity + shipping - discount",
+		"rate * 0.5 + 1.25 * (count - 3)",
+		"i = i + 1",
+		"width * height / 2 > area && !done",
+	};
+
+	private static long allocated() {
+		return THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	private static double lexBytes(int iterations) {
+		var tokens = 0L;
+		final var before = allocated();
+		for (var i = 0; i < iterations; ++i)
+			tokens += MathLexer2.tryLex(SOURCES[i & 3]).tokens().size();
+		final var bytes = allocated() - before;
+		if (tokens == 0)
+			throw new AssertionError();
+		return (double) bytes / iterations;
+	}
+
+	private static double evaluateBytes(int iterations) {
+		final var parser = new MathParser();
+		for (final var name : new String[] { "price", "quantity", "shipping", "discount", "rate", "count", "i",
+				"width", "height", "area" })
+			parser.setVariable(name, 7L);
+		parser.setVariable("rate", 0.75);
+		parser.setVariable("done", false);
+		final var parsed = new ArrayList<MathParser.ParseResult>();
+		for (final var source : SOURCES)
+			parsed.add(MathParser.tryParse(source));
+
+		final var before = allocated();
+		for (var i = 0; i < iterations; ++i) {
+			if ((i & 1023) == 0)
+				parser.setVariable("i", 0L);
+			parser.evaluate(parsed.get(i & 3));
+		}
+		return (double) (allocated() - before) / iterations;
+	}
+
+	private static void flood(int names, int threadCount) throws InterruptedException {
+		final var mismatches = new AtomicInteger();
+		final var threads = new ArrayList<Thread>();
+		final var start = System.nanoTime();
+		for (var t = 0; t < threadCount; ++t) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (var i = 0; i < names; ++i) {
+					final var name = "n" + i;
+					final var first = Identifier.of(name);
+					final var again = Identifier.of(name);
+					// a concurrent flood may evict it in between, but never hand out a wrong name
+					if (!first.identifier.equals(name) || !again.identifier.equals(name))
+						mismatches.incrementAndGet();
+				}
+			}));
+		}
+		for (final var thread : threads)
+			thread.join();
+		final var table = Identifier.SYMBOLS;
+		System.out.printf("flood: %,d threads x %,d names in %.0f ms: %,d held (capacity %,d), %,d evictions, %,d mismatches%n",
+				threadCount, names, (System.nanoTime() - start) / 1e6, table.size(), table.capacity(),
+				table.evictions(), mismatches.get());
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final var iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2_000_000;
+		final var threadCount = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		for (var round = 0; round < 3; ++round)
+			System.out.printf("lex: %6.0f B/op   evaluate: %6.0f B/op%n", lexBytes(iterations), evaluateBytes(iterations));
+		flood(1_000_000, threadCount);
+	}
+}
@@ -0,0 +1,101 @@
+package math_interpreter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.function.Supplier;
+
+/**
+ * Measures assignment throughput of an in-memory {@link MapVariables} against
+ * {@link JournaledVariables} under each {@link JournaledVariables.FsyncPolicy},
+ * first from one thread and then from several (where {@code EVERY_WRITE}
+ * shares forces between writers), and the time to replay the journal on
+ * reopening. Run with
+ * {@code java math_interpreter.JournalBenchmark [assignments] [threads]}.
+ */
+final class JournalBenchmark {
+	private JournalBenchmark() {}
+
+	private static void deleteRecursively(Path directory) throws IOException {
+		if (!Files.exists(directory))
+			return;
+		try (final var files = Files.walk(directory)) {
+			for (final var file : files.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(file);
+		}
+	}
+
+	/** @return Assignments per second */
+	private static double run(Variables variables, int assignments, int threadCount) throws InterruptedException {
+		final var threads = new ArrayList<Thread>();
+		final var start = System.nanoTime();
+		for (var t = 0; t < threadCount; ++t) {
+			final var prefix = "v" + t + "_";
+			final var count = assignments / threadCount;
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (var i = 0; i < count; ++i)
+					variables.put(prefix + (i & 1023), (i % 3 == 0) ? (Object) (i * 0.5) : (Object) (long) i);
+			}));
+		}
+		for (final var thread : threads)
+			thread.join();
+		if (variables instanceof final JournaledVariables journaled)
+			journaled.flush();
+		return assignments / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static void report(String name, int assignments, int threadCount, Supplier<Variables> open)
+			throws InterruptedException {
+		final var variables = open.get();
+		final var rate = run(variables, assignments, threadCount);
+		var syncs = "";
+		if (variables instanceof final JournaledVariables journaled) {
+			syncs = String.format("   %,d fsyncs", journaled.syncs());
+			journaled.close();
+		}
+		System.out.printf("%-22s %2d threads: %,12.0f assignments/s%s%n", name, threadCount, rate, syncs);
+	}
+
+	private static JournaledVariables open(Path directory, JournaledVariables.FsyncPolicy policy) {
+		try {
+			deleteRecursively(directory);
+			return new JournaledVariables(directory, policy, Duration.ofMillis(10), 64 << 20);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		final var assignments = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+		final var threadCount = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		final var directory = Files.createTempDirectory("journal-benchmark");
+		// fsync per write is orders of magnitude slower, so it gets fewer assignments
+		final var synced = Math.max(threadCount, assignments / 200);
+
+		for (final var threads : new int[] { 1, threadCount }) {
+			report("in memory", assignments, threads, MapVariables::new);
+			report("journal, NEVER", assignments, threads, () -> open(directory, JournaledVariables.FsyncPolicy.NEVER));
+			report("journal, INTERVAL", assignments, threads,
+					() -> open(directory, JournaledVariables.FsyncPolicy.INTERVAL));
+			report("journal, EVERY_WRITE", synced, threads,
+					() -> open(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE));
+		}
+
+		// replay: write without compaction, then time reopening
+		deleteRecursively(directory);
+		try (final var journaled = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.NEVER,
+				Duration.ofMillis(10), Long.MAX_VALUE)) {
+			run(journaled, assignments, 1);
+		}
+		final var start = System.nanoTime();
+		try (final var journaled = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.NEVER)) {
+			System.out.printf("replayed %,d assignments into %,d bindings in %.0f ms%n", assignments, journaled.size(),
+					(System.nanoTime() - start) / 1e6);
+		}
+		deleteRecursively(directory);
+	}
+}
@@ -0,0 +1,106 @@
+package math_interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Crash-recovery checks for {@link JournaledVariables}: a write cut short at
+ * the end of the journal, anywhere from inside a record's length to inside its
+ * payload, must be dropped on recovery without losing anything written after
+ * it. A value that is not journaled must not let the one it replaced come back
+ * on recovery. Run with {@code java math_interpreter.JournalCheck}; exits with
+ * status 1 on failure.
+ */
+final class JournalCheck {
+	private JournalCheck() {}
+
+	/** Appends the first {@code count} bytes of a record for {@code c = 3}. */
+	private static void tear(Path directory, int count) throws IOException {
+		final Path journal;
+		try (final var files = Files.list(directory)) {
+			journal = files.filter(f -> f.getFileName().toString().startsWith("journal-"))
+					.max(Comparator.naturalOrder()).orElseThrow();
+		}
+		// length 12, then a checksum and payload that never made it to disk in full
+		final var torn = new byte[] {0, 0, 0, 12, 1, 2, 3, 4, 0, 1, 'c', 1, 0, 0};
+		Files.write(journal, Arrays.copyOf(torn, count), StandardOpenOption.APPEND);
+	}
+
+	private static String recover(int tornBytes) throws IOException {
+		final var directory = Files.createTempDirectory("journal-check");
+		try {
+			try (final var journal = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE)) {
+				journal.put("a", 1L);
+			}
+			tear(directory, tornBytes);
+			try (final var journal = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE)) {
+				journal.put("b", 2L);
+			}
+			try (final var journal = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE)) {
+				return "a=" + journal.get("a") + " b=" + journal.get("b") + " c=" + journal.get("c");
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/** Overwrites journaled values with one that is not journaled, before and after a compaction. */
+	private static String recoverOverwritten() throws IOException {
+		final var directory = Files.createTempDirectory("journal-check");
+		try {
+			try (final var journal = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE)) {
+				journal.put("a", 1L);
+				journal.put("b", 2L);
+				journal.compact();
+				journal.put("a", "not journaled");
+				journal.put("c", 3L);
+				journal.put("c", "not journaled");
+				journal.compact();
+				journal.put("b", "not journaled");
+			}
+			try (final var journal = new JournaledVariables(directory, JournaledVariables.FsyncPolicy.EVERY_WRITE)) {
+				return "a=" + journal.get("a") + " b=" + journal.get("b") + " c=" + journal.get("c");
+			}
+		} finally {
+			delete(directory);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (final var files = Files.walk(directory)) {
+			for (final var file : files.sorted(Comparator.reverseOrder()).toList())
+				Files.delete(file);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		var failed = false;
+		// 1-3 bytes tear the length, 4-7 the checksum, 8 and more the payload
+		for (var tornBytes = 0; tornBytes <= 13; ++tornBytes) {
+			String actual;
+			try {
+				actual = recover(tornBytes);
+			} catch (IOException | RuntimeException e) {
+				actual = e.toString();
+			}
+			final var ok = actual.equals("a=1 b=2 c=null");
+			System.out.printf("torn after %2d bytes  %s%n", tornBytes, ok ? "ok" : "FAIL: " + actual);
+			failed |= !ok;
+		}
+		String actual;
+		try {
+			actual = recoverOverwritten();
+		} catch (IOException | RuntimeException e) {
+			actual = e.toString();
+		}
+		final var ok = actual.equals("a=null b=null c=null");
+		System.out.printf("overwritten          %s%n", ok ? "ok" : "FAIL: " + actual);
+		failed |= !ok;
+		if (failed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,574 @@
+package math_interpreter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link Variables} store that records every assignment in an append-only
+ * journal, so a session survives a crash without snapshotting all of its
+ * variables after each assignment. Opening the same directory again replays
+ * the latest snapshot and then the journal written since.
+ *
+ * <p>
+ * Assignments are appended to an in-memory batch and a background writer
+ * thread writes whole batches (group commit). When the data reaches the disk
+ * depends on the {@link FsyncPolicy}. With {@code EVERY_WRITE},
+ * {@link #put} returns once its record is forced to disk, and concurrent
+ * writers share the forces. Once the journal outgrows the last snapshot (and
+ * the configured threshold), the writer switches to a new journal file and a
+ * background thread writes a fresh snapshot and deletes the journals it
+ * covers.
+ *
+ * <pre>
+ * directory/snapshot.bin           int MAGIC, long coveredGeneration, int n, n * record
+ * directory/journal-GENERATION.log record*
+ * record   int length, int crc32(payload), payload
+ * payload  UTF identifier, byte tag, value
+ * value    NULL | LONG long | DOUBLE double | FALSE | TRUE | MATRIX int rows, int cols, rows * cols * double
+ * </pre>
+ *
+ * A torn record at the end of the last journal (a crash mid-write) is dropped
+ * on replay. Only {@code Long}, {@code Double}, {@code Boolean}, {@code null}
+ * and {@link Matrix} values are journaled; other values such as functions are
+ * kept in memory only, journaled as {@code null}, and must be bound again after
+ * a restart. Once a write has failed, every {@link #put} throws.
+ */
+final class JournaledVariables implements Variables, AutoCloseable {
+	enum FsyncPolicy {
+		/** {@link #put} waits until its record has been forced to disk */
+		EVERY_WRITE,
+		/** Batches are written and forced every interval; up to one interval can be lost */
+		INTERVAL,
+		/** Batches are written every interval and left to the operating system to flush */
+		NEVER
+	}
+
+	static class JournalException extends RuntimeException {
+		JournalException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private static final int SNAPSHOT_MAGIC = 0x4A534E31;
+	private static final String SNAPSHOT = "snapshot.bin";
+	private static final byte NULL = 0, LONG = 1, DOUBLE = 2, FALSE = 3, TRUE = 4, MATRIX = 5;
+	/** A pending batch this large is written without waiting for the interval */
+	private static final int EAGER_WRITE_BYTES = 1 << 20;
+
+	private final Path directory;
+	private final FsyncPolicy policy;
+	private final long intervalMillis;
+	private final long compactionThreshold;
+
+	private final Object lock = new Object();
+	// guarded by lock
+	private final HashMap<String, Object> state = new HashMap<>();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+	private ByteArrayOutputStream writing = new ByteArrayOutputStream(1 << 16);
+	private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+	private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+	private final CRC32 crc = new CRC32();
+	private long appended;
+	private long durable;
+	private long syncs;
+	private long compactions;
+	private boolean compactRequested;
+	private boolean closed;
+	private IOException failure;
+
+	// writer thread only
+	private FileOutputStream journal;
+	private long generation;
+	private long journalBytes;
+	private volatile long snapshotBytes;
+	private Thread compactor;
+
+	private final Thread writer;
+
+	/**
+	 * Opens (or creates) the journal in {@code directory} and replays it.
+	 *
+	 * @param interval            How often {@code INTERVAL} and {@code NEVER}
+	 *                            write batches
+	 * @param compactionThreshold Journal size in bytes below which no compaction
+	 *                            happens
+	 */
+	JournaledVariables(Path directory, FsyncPolicy policy, Duration interval, long compactionThreshold)
+			throws IOException {
+		this.directory = directory;
+		this.policy = policy;
+		this.intervalMillis = Math.max(1, interval.toMillis());
+		this.compactionThreshold = compactionThreshold;
+		recover();
+		writer = new Thread(this::writeLoop, "journal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	JournaledVariables(Path directory, FsyncPolicy policy) throws IOException {
+		this(directory, policy, Duration.ofMillis(10), 64 << 20);
+	}
+
+	@Override
+	public Object get(String identifier) {
+		synchronized (lock) {
+			return state.get(identifier);
+		}
+	}
+
+	@Override
+	public void put(String identifier, Object value) {
+		final long sequence;
+		synchronized (lock) {
+			if (closed)
+				throw new IllegalStateException("journal is closed");
+			checkFailure();
+			final var previous = state.put(identifier, value);
+			if (!isJournaled(value)) {
+				// the journal must not bring back the value this one replaced, so record null instead
+				if (previous == null || !isJournaled(previous))
+					return;
+				value = null;
+			}
+			append(pending, identifier, value);
+			sequence = ++appended;
+			if (policy == FsyncPolicy.EVERY_WRITE || pending.size() >= EAGER_WRITE_BYTES)
+				lock.notifyAll();
+		}
+		if (policy == FsyncPolicy.EVERY_WRITE)
+			awaitDurable(sequence);
+	}
+
+	/** @return How many bindings the store holds */
+	int size() {
+		synchronized (lock) {
+			return state.size();
+		}
+	}
+
+	/** @return How many times the writer has forced the journal to disk */
+	long syncs() {
+		synchronized (lock) {
+			return syncs;
+		}
+	}
+
+	/**
+	 * Blocks until everything assigned so far has been written according to the
+	 * fsync policy.
+	 */
+	void flush() {
+		final long sequence;
+		synchronized (lock) {
+			sequence = appended;
+			lock.notifyAll();
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Starts a new journal file and writes a snapshot covering the old ones,
+	 * blocking until the snapshot is in place.
+	 */
+	void compact() {
+		synchronized (lock) {
+			final var target = compactions + 1;
+			compactRequested = true;
+			lock.notifyAll();
+			while (compactions < target && failure == null && !closed)
+				waitOnLock();
+			checkFailure();
+		}
+	}
+
+	private void awaitDurable(long sequence) {
+		synchronized (lock) {
+			while (durable < sequence && failure == null)
+				waitOnLock();
+			checkFailure();
+		}
+	}
+
+	private void waitOnLock() {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JournalException("interrupted while waiting for the journal", e);
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new JournalException("journal write failed", failure);
+	}
+
+	private static boolean isJournaled(Object value) {
+		return value == null || value instanceof Long || value instanceof Double || value instanceof Boolean
+				|| value instanceof Matrix;
+	}
+
+	/** Frames one record into {@code out}; the caller holds the lock. */
+	private void append(ByteArrayOutputStream out, String identifier, Object value) {
+		try {
+			payloadBytes.reset();
+			payload.writeUTF(identifier);
+			switch (value) {
+				case null -> payload.writeByte(NULL);
+				case final Long l -> {
+					payload.writeByte(LONG);
+					payload.writeLong(l);
+				}
+				case final Double d -> {
+					payload.writeByte(DOUBLE);
+					payload.writeDouble(d);
+				}
+				case final Boolean b -> payload.writeByte(b ? TRUE : FALSE);
+				case final Matrix m -> {
+					payload.writeByte(MATRIX);
+					payload.writeInt(m.rows);
+					payload.writeInt(m.cols);
+					for (final var x : m.data)
+						payload.writeDouble(x);
+				}
+				default -> throw new IllegalArgumentException("cannot journal " + value.getClass().getSimpleName());
+			}
+			crc.reset();
+			crc.update(payloadBytes.toByteArray());
+			final var length = payloadBytes.size();
+			out.write(length >>> 24);
+			out.write(length >>> 16);
+			out.write(length >>> 8);
+			out.write(length);
+			final var checksum = (int) crc.getValue();
+			out.write(checksum >>> 24);
+			out.write(checksum >>> 16);
+			out.write(checksum >>> 8);
+			out.write(checksum);
+			payloadBytes.writeTo(out);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				final ByteArrayOutputStream batch;
+				final long upTo;
+				final boolean stop;
+				final boolean compact;
+				synchronized (lock) {
+					if (policy == FsyncPolicy.EVERY_WRITE) {
+						while (appended == durable && !closed && !compactRequested)
+							lock.wait();
+					} else if (!closed && !compactRequested && pending.size() < EAGER_WRITE_BYTES) {
+						lock.wait(intervalMillis);
+					}
+					batch = pending;
+					pending = writing;
+					writing = batch;
+					upTo = appended;
+					stop = closed;
+					compact = compactRequested;
+					compactRequested = false;
+				}
+
+				final var forced = write(batch);
+				synchronized (lock) {
+					durable = upTo;
+					if (forced)
+						++syncs;
+					lock.notifyAll();
+				}
+
+				if (stop)
+					break;
+				if (compact || (journalBytes > Math.max(compactionThreshold, snapshotBytes) && !isCompacting()))
+					startCompaction();
+			}
+			if (compactor != null)
+				compactor.join();
+			journal.close();
+		} catch (IOException e) {
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** @return Whether the journal was forced to disk */
+	private boolean write(ByteArrayOutputStream batch) throws IOException {
+		if (batch.size() == 0)
+			return false;
+		batch.writeTo(journal);
+		journalBytes += batch.size();
+		batch.reset();
+		if (policy == FsyncPolicy.NEVER)
+			return false;
+		journal.getChannel().force(false);
+		return true;
+	}
+
+	private boolean isCompacting() {
+		return compactor != null && compactor.isAlive();
+	}
+
+	/**
+	 * Switches to a new journal and snapshots the state in the background. The
+	 * snapshot is taken after the switch, so it includes everything in the old
+	 * journals; records in the new journal that it also includes replay to the
+	 * same values.
+	 */
+	private void startCompaction() throws IOException, InterruptedException {
+		if (compactor != null)
+			compactor.join();
+		journal.getChannel().force(false);
+		journal.close();
+		final var covered = generation;
+		openJournal(covered + 1);
+
+		final Map<String, Object> copy;
+		synchronized (lock) {
+			copy = new HashMap<>(state);
+		}
+		compactor = new Thread(() -> {
+			try {
+				snapshotBytes = writeSnapshot(copy, covered);
+				deleteJournalsUpTo(covered);
+				synchronized (lock) {
+					++compactions;
+					lock.notifyAll();
+				}
+			} catch (IOException e) {
+				synchronized (lock) {
+					failure = e;
+					lock.notifyAll();
+				}
+			}
+		}, "journal-compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	private long writeSnapshot(Map<String, Object> copy, long coveredGeneration) throws IOException {
+		final var temporary = directory.resolve(SNAPSHOT + ".tmp");
+		final var records = new ByteArrayOutputStream(64);
+		try (final var file = new FileOutputStream(temporary.toFile());
+				final var out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(coveredGeneration);
+			var count = 0;
+			for (final var entry : copy.entrySet())
+				if (isJournaled(entry.getValue()))
+					++count;
+			out.writeInt(count);
+			for (final var entry : copy.entrySet()) {
+				if (!isJournaled(entry.getValue()))
+					continue;
+				records.reset();
+				synchronized (lock) {
+					append(records, entry.getKey(), entry.getValue());
+				}
+				records.writeTo(out);
+			}
+			out.flush();
+			file.getChannel().force(true);
+		}
+		final var snapshot = directory.resolve(SNAPSHOT);
+		Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory();
+		return Files.size(snapshot);
+	}
+
+	private void syncDirectory() throws IOException {
+		try (final var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform can open a directory; the rename itself is still atomic
+		}
+	}
+
+	private Path journalFile(long generation) {
+		return directory.resolve(String.format("journal-%016x.log", generation));
+	}
+
+	/** @return Generations of the journal files present, in ascending order */
+	private ArrayList<Long> journalGenerations() throws IOException {
+		final var generations = new ArrayList<Long>();
+		try (final var files = Files.newDirectoryStream(directory, "journal-*.log")) {
+			for (final var file : files) {
+				final var name = file.getFileName().toString();
+				generations.add(Long.parseUnsignedLong(name.substring("journal-".length(), name.length() - 4), 16));
+			}
+		}
+		generations.sort(null);
+		return generations;
+	}
+
+	private void deleteJournalsUpTo(long coveredGeneration) throws IOException {
+		for (final var g : journalGenerations())
+			if (g <= coveredGeneration)
+				Files.deleteIfExists(journalFile(g));
+	}
+
+	private void openJournal(long generation) throws IOException {
+		this.generation = generation;
+		final var file = journalFile(generation);
+		journal = new FileOutputStream(file.toFile(), true);
+		journalBytes = Files.size(file);
+	}
+
+	/** Loads the snapshot, replays newer journals and opens the last one for appending. */
+	private void recover() throws IOException {
+		Files.createDirectories(directory);
+		var covered = 0L;
+		final var snapshot = directory.resolve(SNAPSHOT);
+		if (Files.exists(snapshot)) {
+			covered = readSnapshot(snapshot);
+			snapshotBytes = Files.size(snapshot);
+		}
+		Files.deleteIfExists(directory.resolve(SNAPSHOT + ".tmp"));
+
+		final var generations = journalGenerations();
+		var last = covered + 1;
+		for (var i = 0; i < generations.size(); ++i) {
+			final long g = generations.get(i);
+			if (g <= covered) {
+				// left behind by a compaction that crashed after writing its snapshot
+				Files.delete(journalFile(g));
+				continue;
+			}
+			replay(journalFile(g), i == generations.size() - 1);
+			last = g;
+		}
+		openJournal(last);
+	}
+
+	private long readSnapshot(Path snapshot) throws IOException {
+		try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException(snapshot + " is not a snapshot");
+			final var covered = in.readLong();
+			final var count = in.readInt();
+			for (var i = 0; i < count; ++i)
+				if (readRecord(in) <= 0)
+					throw new IOException(snapshot + " is corrupt at record " + i);
+			return covered;
+		}
+	}
+
+	/**
+	 * Applies the records of one journal file. A bad record at the end of the
+	 * last file is a write cut short by a crash and is truncated away; anywhere
+	 * else it is corruption.
+	 */
+	private void replay(Path file, boolean isLast) throws IOException {
+		var good = 0L;
+		try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			while (true) {
+				final var length = readRecord(in);
+				if (length == 0)
+					return;
+				if (length < 0)
+					break;
+				good += length;
+			}
+		}
+		if (!isLast)
+			throw new IOException(file + " is corrupt at offset " + good);
+		try (final var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(good);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * @return The bytes consumed, {@code 0} at a clean end of input (between
+	 *         records) or {@code -1} for a truncated or corrupt record,
+	 *         including one cut off inside its length
+	 */
+	private int readRecord(DataInputStream in) throws IOException {
+		final var first = in.read();
+		if (first < 0)
+			return 0;
+		try {
+			final var length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+			final var checksum = in.readInt();
+			if (length < 0 || length > (1 << 30))
+				return -1;
+			final var bytes = new byte[length];
+			in.readFully(bytes);
+			final var check = new CRC32();
+			check.update(bytes);
+			if ((int) check.getValue() != checksum)
+				return -1;
+			final var record = new DataInputStream(new ByteArrayInputStream(bytes));
+			final var identifier = record.readUTF();
+			final var tag = record.readByte();
+			state.put(identifier, switch (tag) {
+				case NULL -> null;
+				case LONG -> record.readLong();
+				case DOUBLE -> record.readDouble();
+				case FALSE -> false;
+				case TRUE -> true;
+				case MATRIX -> {
+					final var rows = record.readInt();
+					final var cols = record.readInt();
+					final var data = new double[rows * cols];
+					for (var i = 0; i < data.length; ++i)
+						data[i] = record.readDouble();
+					yield Matrix.of(rows, cols, data);
+				}
+				default -> throw new IOException("unknown value tag " + tag);
+			});
+			return 8 + length;
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes what is still pending (forced unless the policy is {@code NEVER})
+	 * and releases the journal. The store cannot be assigned to afterwards.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			checkFailure();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package math_interpreter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entry point for short-lived command line use, where JVM startup dominates
+ * the cost of a one-line evaluation. The {@code launcher.sh} script next to
+ * this file runs it with a class-data-sharing archive produced by
+ * {@code --train}.
+ *
+ * <pre>
+ * java math_interpreter.Launcher 'x = 3' 'x ** 2 + 1'   evaluates each argument in one session
+ * java math_interpreter.Launcher &lt; script              evaluates each line of standard input
+ * java math_interpreter.Launcher --train [corpus]       runs the training corpus, printing nothing
+ * </pre>
+ *
+ * Results are printed one per line. A syntax error or failure is reported on
+ * standard error, and the exit status is 1 if any expression failed.
+ */
+final class Launcher {
+	private Launcher() {}
+
+	/**
+	 * Representative expressions for {@code --train}. Together they load the
+	 * lexer, every operator enum, the long/double fast paths, diagnostics and
+	 * function calls, so the archive holds what a typical one-line evaluation
+	 * touches.
+	 */
+	static final List<String> CORPUS = List.of(
+			"1 + 2 * 3 - 4 / 2",
+			"x = 12",
+			"y = 2.5",
+			"x * y - x / 5 + x % 5",
+			"x ** 2 + y ** 0.5",
+			"-x + +y - -(x - y)",
+			"(x + 1) * (y - 1) / (x - y)",
+			"x += 3",
+			"x -= 1",
+			"x *= 2",
+			"x /= 4",
+			"y **= 2",
+			"flags = 6",
+			"flags & 3 | 8 ^ 1",
+			"flags &= 12",
+			"flags |= 1",
+			"x < y || x >= 10 && !(y == 6.25)",
+			"x != y && x <= 100 && y > 0",
+			"b = true",
+			"b && !false || null == null",
+			"sin(y) + cos(y) * tan(0.5)",
+			"sqrt(x) + abs(-y) + exp(1) + log(x)",
+			"big = 9007199254740993 * 3",
+			"tiny = 0.000001 * 1.5",
+			"1 + ",
+			"(x * 2",
+			"x = = 1");
+
+	/**
+	 * Evaluates one expression, printing the result to {@code out} or the error
+	 * to {@code err}.
+	 *
+	 * @return Whether the expression evaluated successfully
+	 */
+	static boolean evaluate(MathParser parser, String source, PrintStream out, PrintStream err) {
+		final var parsed = MathParser.tryParse(source);
+		if (!parsed.ok()) {
+			final var error = parsed.error();
+			err.println(source);
+			err.println(" ".repeat(error.column() - 1) + '^');
+			err.println(error);
+			return false;
+		}
+		try {
+			out.println(parser.evaluate(parsed));
+			return true;
+		} catch (RuntimeException e) {
+			err.println(source + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Runs {@link #CORPUS} and any expressions in {@code corpusFile} enough times
+	 * to load and initialize every class they use.
+	 */
+	static void train(Path corpusFile) throws IOException {
+		final var corpus = new ArrayList<>(CORPUS);
+		if (corpusFile != null)
+			corpus.addAll(Files.readAllLines(corpusFile));
+		final var discard = new PrintStream(PrintStream.nullOutputStream());
+		for (var round = 0; round < 3; ++round) {
+			final var parser = new MathParser();
+			for (final var source : corpus)
+				if (!source.isBlank())
+					evaluate(parser, source, discard, discard);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("--train")) {
+			train((args.length > 1) ? Path.of(args[1]) : null);
+			return;
+		}
+
+		final var parser = new MathParser();
+		var ok = true;
+		if (args.length > 0) {
+			for (final var source : args)
+				ok &= evaluate(parser, source, System.out, System.err);
+		} else {
+			final var in = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while ((line = in.readLine()) != null)
+				if (!line.isBlank())
+					ok &= evaluate(parser, line, System.out, System.err);
+		}
+		System.out.flush();
+		if (!ok)
+			System.exit(1);
+	}
+}
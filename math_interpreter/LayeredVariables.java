@@ -0,0 +1,68 @@
+package math_interpreter;
+
+import java.util.HashMap;
+
+/**
+ * A session's variables: a shared, immutable {@link SharedDefinitions} base
+ * with a private overlay on top. Reads fall through the overlay to the base;
+ * writes only ever touch the overlay, which is not allocated until the first
+ * write. A session therefore costs one small object until it assigns
+ * something, and afterwards only as much as it has assigned.
+ */
+final class LayeredVariables implements Variables {
+	/** Stored in the overlay when a session binds a shared name to null. */
+	private static final Object NULL = new Object();
+
+	private final SharedDefinitions base;
+	private HashMap<String, Object> overlay;
+
+	LayeredVariables(SharedDefinitions base) {
+		this.base = base;
+	}
+
+	@Override
+	public Object get(String identifier) {
+		if (overlay != null) {
+			final var value = overlay.get(identifier);
+			if (value != null)
+				return (value == NULL) ? null : value;
+		}
+		return base.get(identifier);
+	}
+
+	@Override
+	public void put(String identifier, Object value) {
+		if (overlay == null)
+			overlay = new HashMap<>(4);
+		overlay.put(identifier, (value == null) ? NULL : value);
+	}
+
+	/**
+	 * Drops the session's binding for {@code identifier}, exposing the shared
+	 * definition again (if there is one).
+	 */
+	void reset(String identifier) {
+		if (overlay != null)
+			overlay.remove(identifier);
+	}
+
+	SharedDefinitions base() {
+		return base;
+	}
+
+	/** @return How many bindings this session has made on top of the base */
+	int overlaySize() {
+		return (overlay == null) ? 0 : overlay.size();
+	}
+
+	/**
+	 * @return A new session over the same base, starting with a copy of this
+	 *         session's overlay
+	 */
+	LayeredVariables fork() {
+		final var copy = new LayeredVariables(base);
+		if (overlay != null)
+			copy.overlay = new HashMap<>(overlay);
+		return copy;
+	}
+}
@@ -52,8 +52,6 @@ final class LongDoubleOperators {
 	}
 
 	static Number power(Number a, Number b) {
-		System.out.println(a);
-		System.out.println(b);
 		final var result = Math.pow(a.doubleValue(), b.doubleValue());
 		if (a instanceof final Long aL && b instanceof final Long bL) {
 			return (long) result;
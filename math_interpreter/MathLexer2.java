@@ -1,455 +1,349 @@
 package math_interpreter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
 public class MathLexer2 {
 	private MathLexer2() {}
 
+	/** Highest accepted {@code $index} placeholder */
+	static final int MAX_PARAMETER = 0xFFFF;
+
 	static class MathLexerException extends RuntimeException {
 		MathLexerException(String message) {
 			super(message);
 		}
 	}
 
-	private static record EndIndexOfNumberResult(int index, boolean decimalPointFound) {}
+	/**
+	 * Outcome of {@link #tryLex}. On success {@code error} is {@code null} and
+	 * {@code offsets[i]} is the source offset of {@code tokens.get(i)}; on
+	 * failure {@code tokens} holds whatever was lexed before the error.
+	 */
+	static record LexResult(List<Token> tokens, int[] offsets, Diagnostic error) {
+		boolean ok() {
+			return error == null;
+		}
+	}
 
-	private static EndIndexOfNumberResult endIndexOfNumber(String s, int start) {
-		final var length = s.length();
-		var decimalPointFound = false;
-		for (var i = (s.charAt(start) == '-') ? (start + 1) : start; i < length; ++i) {
-			final var c = s.charAt(i);
-			if (c == '.') {
-				if (decimalPointFound) {
-					throw new MathLexerException("Too many decimal points!");
+	/**
+	 * Mutable state of one {@link #tryLex} run. Keeps the token offsets in a
+	 * growable {@code int[]} so recording positions does not box.
+	 */
+	private static final class Lexer {
+		final String s;
+		final int length;
+		final ArrayList<Token> tokens = new ArrayList<>();
+		int[] offsets = new int[16];
+		Diagnostic error;
+
+		Lexer(String s) {
+			this.s = s;
+			this.length = s.length();
+		}
+
+		/** @return The character at {@code i}, or {@code '\0'} past the end */
+		char peek(int i) {
+			return (i < length) ? s.charAt(i) : '\0';
+		}
+
+		Token previous() {
+			final var size = tokens.size();
+			return (size == 0) ? null : tokens.get(size - 1);
+		}
+
+		void add(Token token, int offset) {
+			final var size = tokens.size();
+			if (size == offsets.length)
+				offsets = Arrays.copyOf(offsets, size * 2);
+			offsets[size] = offset;
+			tokens.add(token);
+		}
+
+		void fail(int offset, String message, String expected) {
+			error = Diagnostic.at(s, offset, message, expected);
+		}
+
+		/**
+		 * A '+' or '-' is binary when it follows something that produces a value,
+		 * otherwise it is a prefix operator.
+		 */
+		boolean followsOperand() {
+			final var prev = previous();
+			return prev instanceof Operand || prev == StructuralToken.RIGHT_PAREN;
+		}
+
+		/** @return The index just past the number starting at {@code start}, or -1 on error */
+		int lexNumber(int start) {
+			var decimalPointFound = false;
+			var overflow = false;
+			var value = 0L;
+			var i = start;
+			for (; i < length; ++i) {
+				final var c = s.charAt(i);
+				if (c == '.') {
+					if (decimalPointFound) {
+						fail(i, "too many decimal points", "digit");
+						return -1;
+					}
+					decimalPointFound = true;
+					continue;
+				}
+				if (c < '0' || c > '9')
+					break;
+				if (!decimalPointFound) {
+					final var digit = c - '0';
+					if (value > (Long.MAX_VALUE - digit) / 10)
+						overflow = true;
+					value = value * 10 + digit;
 				}
-				decimalPointFound = true;
-				continue;
 			}
-			if (!Character.isDigit(c)) {
-				return new EndIndexOfNumberResult(i, decimalPointFound);
+			if (decimalPointFound) {
+				add(Value.of(Double.parseDouble(s.substring(start, i))), start);
+			} else if (overflow) {
+				fail(start, "integer literal too large", null);
+				return -1;
+			} else {
+				add(Value.of(value), start);
 			}
+			return i;
 		}
-		return new EndIndexOfNumberResult(length, decimalPointFound);
-	}
 
-	private static int endIndexOfIdentifier(String s, int start) {
-		final var length = s.length();
-		if (Character.isDigit(s.charAt(0))) {
-			throw new MathLexerException("First character is digit!");
-		}
-		for (var i = start; i < length; ++i) {
-			final var c = s.charAt(i);
-			if (!Character.isAlphabetic(c) && !Character.isDigit(c)) {
-				return i;
+		/** @return The index just past the {@code $index} placeholder at {@code start}, or -1 on error */
+		int lexParameter(int start) {
+			var i = start + 1;
+			var index = 0;
+			for (; i < length && s.charAt(i) >= '0' && s.charAt(i) <= '9'; ++i) {
+				index = index * 10 + (s.charAt(i) - '0');
+				if (index > MAX_PARAMETER) {
+					fail(start, "parameter index too large", null);
+					return -1;
+				}
 			}
+			if (i == start + 1 || index == 0) {
+				fail(start, "'$' must be followed by a parameter number from 1", "parameter number");
+				return -1;
+			}
+			add(new Parameter(index), start);
+			return i;
 		}
-		return length;
-	}
 
-	static List<Token> lex(String s) {
-		Objects.requireNonNull(s);
-		final var length = s.length();
-		final var tokens = new ArrayList<Token>();
-		for (var i = 0; i < length;) {
-			final var c = s.charAt(i);
-
-			if (Character.isWhitespace(c)) {
-				// if (c == '\n') {
-				// 	tokens.add(StructuralToken.NEWLINE);
-				// }
+		int lexIdentifier(int start) {
+			var i = start + 1;
+			while (i < length && (Character.isAlphabetic(s.charAt(i)) || Character.isDigit(s.charAt(i)) || s.charAt(i) == '_'))
 				++i;
-				continue;
+			final var identifier = Identifier.of(s, start, i);
+			final var function = BuiltinFunction.lookup(identifier.identifier);
+			if (function != null && peek(skipWhitespace(i)) == '(') {
+				add(function, start);
+			} else {
+				add(identifier, start);
 			}
+			return i;
+		}
 
-			if (Character.isDigit(c)) {
-				final var result = endIndexOfNumber(s, i);
-				final var num = s.substring(i, result.index());
-				tokens.add(
-					(result.decimalPointFound())
-						? Value.of(Double.parseDouble(num))
-						: Value.of(Long.parseLong(num))
-				);
-				i = result.index();
-				continue;
-			}
+		int skipWhitespace(int i) {
+			while (i < length && Character.isWhitespace(s.charAt(i)))
+				++i;
+			return i;
+		}
 
-			firstCharacterSwitch: switch (c) {
-				case '\n' -> tokens.add(StructuralToken.NEWLINE);
-				case '(' -> tokens.add(StructuralToken.LEFT_PAREN);
-				case ')' -> tokens.add(StructuralToken.RIGHT_PAREN);
-
-				// boolean true
-				case 't' -> {
-					try {
-						switch (s.substring(i + 1, i + 4)) {
-							case "rue" -> {
-								tokens.add(Value.TRUE);
-								i += 4;
-							}
-							default -> {
-								break firstCharacterSwitch;
-							}
-						}
-						continue;
-					} catch (StringIndexOutOfBoundsException e) {
-						break firstCharacterSwitch;
-					}
-				}
+		/** @return The index just past the token starting at {@code i}, or -1 on error */
+		int lexToken(int i) {
+			final var c = s.charAt(i);
+			final var next = peek(i + 1);
 
-				// boolean false
-				case 'f' -> {
-					try {
-						switch (s.substring(i + 1, i + 5)) {
-							case "alse" -> {
-								tokens.add(Value.FALSE);
-								i += 5;
-							}
-							default -> {
-								break firstCharacterSwitch;
-							}
-						}
-						continue;
-					} catch (StringIndexOutOfBoundsException e) {
-						break firstCharacterSwitch;
-					}
+			if (c >= '0' && c <= '9')
+				return lexNumber(i);
+
+			switch (c) {
+				case '(' -> add(StructuralToken.LEFT_PAREN, i);
+				case ')' -> add(StructuralToken.RIGHT_PAREN, i);
+				case ',' -> add(StructuralToken.COMMA, i);
+				case '$' -> {
+					return lexParameter(i);
 				}
 
-				// null
-				case 'n' -> {
-					try {
-						switch (s.substring(i + 1, i + 4)) {
-							case "ull" -> {
-								tokens.add(Value.NULL);
-								i += 4;
-							}
-							default -> {
-								break firstCharacterSwitch;
-							}
-						}
-						continue;
-					} catch (StringIndexOutOfBoundsException e) {
-						break firstCharacterSwitch;
+				// boolean literals and null, unless they are just the start of an identifier
+				case 't', 'f', 'n' -> {
+					final var keyword = (c == 't') ? "true" : (c == 'f') ? "false" : "null";
+					final var end = i + keyword.length();
+					if (s.startsWith(keyword, i) && !isIdentifierPart(peek(end))) {
+						add((c == 't') ? Value.TRUE : (c == 'f') ? Value.FALSE : Value.NULL, i);
+						return end;
 					}
+					return lexIdentifier(i);
 				}
 
-				// asignment or equals
+				// assignment or equals
 				case '=' -> {
-					/* check for equals */ {
-						final char nextChar;
-
-						try {
-							nextChar = s.charAt(i + 1);
-						} catch (StringIndexOutOfBoundsException e) {
-							throw new MathLexerException("in lexing '=': not enough tokens");
-						}
-
-						switch (nextChar) {
-							case '=' -> {
-								tokens.add(ComparisonOperator.EQUALS);
-								i += 2;
-								continue;
-							}
-						}
+					if (next == '=') {
+						add(ComparisonOperator.EQUALS, i);
+						return i + 2;
 					}
-
 					final var size = tokens.size();
-					
 					if (size == 1 && tokens.get(0) instanceof Identifier) {
-						tokens.add(AssignmentOperator.ASSIGNMENT);
-					} else if (tokens.get(size - 1) instanceof Identifier && tokens.get(size - 2) == StructuralToken.LEFT_PAREN) {
-						tokens.add(AssignmentOperator.ON_THE_FLY);
+						add(AssignmentOperator.ASSIGNMENT, i);
+					} else if (size >= 2 && tokens.get(size - 1) instanceof Identifier
+							&& tokens.get(size - 2) == StructuralToken.LEFT_PAREN) {
+						add(AssignmentOperator.ON_THE_FLY, i);
+					} else {
+						fail(i, "assignment must follow a lone identifier or '(' identifier", "'=='");
+						return -1;
 					}
 				}
 
 				// plus or plus assign
 				case '+' -> {
-					/* check for plus assign */ {
-						final char nextChar;
-
-						try {
-							nextChar = s.charAt(i + 1);
-						} catch (StringIndexOutOfBoundsException e) {
-							throw new MathLexerException("in lexing '+': not enough tokens");
-						}
-
-						if (nextChar == '=') {
-							tokens.add(AssignmentOperator.PLUS);
-							i += 2;
-							continue;
-						}
-					}
-
-					/* check for unary or binary plus */ {
-						final Token prevToken;
-	
-						try {
-							prevToken = tokens.get(tokens.size() - 1);
-						} catch (ArrayIndexOutOfBoundsException e) {
-							tokens.add(UnaryArithmeticOperator.PLUS);
-							++i;
-							continue;
-						}
-
-						tokens.add(switch (prevToken) {
-							case Operand __ -> BinaryArithmeticOperator.PLUS;
-							default -> UnaryArithmeticOperator.PLUS;
-						});
-
-						++i;
-						continue;
+					if (next == '=') {
+						add(AssignmentOperator.PLUS, i);
+						return i + 2;
 					}
+					add(followsOperand() ? BinaryArithmeticOperator.PLUS : UnaryArithmeticOperator.PLUS, i);
 				}
 
+				// minus, negation or minus assign
 				case '-' -> {
-					/* check for minus assign */ {
-						final char nextChar;
-
-						try {
-							nextChar = s.charAt(i + 1);
-						} catch (StringIndexOutOfBoundsException e) {
-							throw new MathLexerException("in lexing '-': not enough tokens");
-						}
-	
-						if (nextChar == '=') {
-							tokens.add(AssignmentOperator.MINUS);
-							i += 2;
-							continue;
-						}
-					}
-	
-					/* check for negation or subtraction */ {
-						final Token prevToken;
-	
-						try {
-							prevToken = tokens.get(tokens.size() - 1);
-						} catch (IndexOutOfBoundsException e) {
-							tokens.add(UnaryArithmeticOperator.NEGATE);
-							++i;
-							continue;
-						}
-
-						tokens.add(switch (prevToken) {
-							case Operand __ -> BinaryArithmeticOperator.MINUS;
-							case StructuralToken t -> switch (t) {
-								case LEFT_PAREN -> UnaryArithmeticOperator.NEGATE;
-								case RIGHT_PAREN -> BinaryArithmeticOperator.MINUS;
-								default -> throw new MathLexerException("unexpected token before '-'");
-							};
-							default -> UnaryArithmeticOperator.NEGATE;
-						});
-
-						++i;
-						continue;
+					if (next == '=') {
+						add(AssignmentOperator.MINUS, i);
+						return i + 2;
 					}
+					add(followsOperand() ? BinaryArithmeticOperator.MINUS : UnaryArithmeticOperator.NEGATE, i);
 				}
 
 				// times or power or times assign
 				case '*' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '*': not enough tokens");
-					}
-
-					switch (nextChar) {
+					switch (next) {
 						case '*' -> {
-							tokens.add(BinaryArithmeticOperator.POWER);
-							i += 2;
+							add(BinaryArithmeticOperator.POWER, i);
+							return i + 2;
 						}
 						case '=' -> {
-							tokens.add(AssignmentOperator.TIMES);
-							i += 2;
-						}
-						default -> {
-							tokens.add(BinaryArithmeticOperator.TIMES);
-							++i;
+							add(AssignmentOperator.TIMES, i);
+							return i + 2;
 						}
+						default -> add(BinaryArithmeticOperator.TIMES, i);
 					}
-
-					continue;
 				}
 
 				// divide or divide assign
 				case '/' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '/': not enough tokens");
-					}
-
-					switch (nextChar) {
-						case '=' -> {
-							tokens.add(AssignmentOperator.DIVIDE);
-							i += 2;
-						}
-						default -> {
-							tokens.add(BinaryArithmeticOperator.DIVIDE);
-							++i;
-						}
+					if (next == '=') {
+						add(AssignmentOperator.DIVIDE, i);
+						return i + 2;
 					}
+					add(BinaryArithmeticOperator.DIVIDE, i);
 				}
 
 				// not or not equal
 				case '!' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '!': not enough tokens");
-					}
-
-					switch (nextChar) {
-						case '=' -> {
-							tokens.add(ComparisonOperator.NOT_EQUAL);
-							i += 2;
-						}
-						default -> {
-							tokens.add(UnaryBooleanOperator.NOT);
-							++i;
-						}
+					if (next == '=') {
+						add(ComparisonOperator.NOT_EQUAL, i);
+						return i + 2;
 					}
+					add(UnaryBooleanOperator.NOT, i);
 				}
 
 				// less than (or equal)
 				case '<' -> {
-					final char nextChar;
-					
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '<': not enough tokens");
-					}
-
-					switch (nextChar) {
-						case '=' -> {
-							tokens.add(ComparisonOperator.LESS_THAN_OR_EQUAL);
-							i += 2;
-						}
-						default -> {
-							tokens.add(ComparisonOperator.LESS_THAN);
-							++i;
-						}
+					if (next == '=') {
+						add(ComparisonOperator.LESS_THAN_OR_EQUAL, i);
+						return i + 2;
 					}
+					add(ComparisonOperator.LESS_THAN, i);
 				}
 
 				// greater than (or equal)
 				case '>' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '>': not enough tokens");
-					}
-
-					switch (nextChar) {
-						case '=' -> {
-							tokens.add(ComparisonOperator.GREATER_THAN_OR_EQUAL);
-							i += 2;
-						}
-						default -> {
-							tokens.add(ComparisonOperator.GREATER_THAN);
-							++i;
-						}
+					if (next == '=') {
+						add(ComparisonOperator.GREATER_THAN_OR_EQUAL, i);
+						return i + 2;
 					}
+					add(ComparisonOperator.GREATER_THAN, i);
 				}
 
 				// boolean and, bitwise and, bitwise and assign
 				case '&' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '&': not enough tokens");
-					}
-
-					switch (nextChar) {
+					switch (next) {
 						case '&' -> {
-							tokens.add(BinaryBooleanOperator.AND);
-							i += 2;
+							add(BinaryBooleanOperator.AND, i);
+							return i + 2;
 						}
 						case '=' -> {
-							tokens.add(AssignmentOperator.BITWISE_AND);
-							i += 2;
-						}
-						default -> {
-							tokens.add(BitwiseOperator.AND);
-							++i;
+							add(AssignmentOperator.BITWISE_AND, i);
+							return i + 2;
 						}
+						default -> add(BitwiseOperator.AND, i);
 					}
-
-					continue;
 				}
 
+				// boolean or, bitwise or, bitwise or assign
 				case '|' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '|': not enough tokens");
-					}
-
-					switch (nextChar) {
+					switch (next) {
 						case '|' -> {
-							tokens.add(BinaryBooleanOperator.OR);
-							i += 2;
+							add(BinaryBooleanOperator.OR, i);
+							return i + 2;
 						}
 						case '=' -> {
-							tokens.add(AssignmentOperator.BITWISE_OR);
-							i += 2;
-						}
-						default -> {
-							tokens.add(BitwiseOperator.OR);
-							++i;
+							add(AssignmentOperator.BITWISE_OR, i);
+							return i + 2;
 						}
+						default -> add(BitwiseOperator.OR, i);
 					}
-
-					continue;
 				}
 
+				// bitwise xor or bitwise xor assign
 				case '^' -> {
-					final char nextChar;
-
-					try {
-						nextChar = s.charAt(i + 1);
-					} catch (StringIndexOutOfBoundsException e) {
-						throw new MathLexerException("in lexing '^': not enough tokens");
+					if (next == '=') {
+						add(AssignmentOperator.BITWISE_XOR, i);
+						return i + 2;
 					}
+					add(BitwiseOperator.XOR, i);
+				}
 
-					switch (nextChar) {
-						case '=' -> {
-							tokens.add(AssignmentOperator.BITWISE_XOR);
-							i += 2;
-						}
-						default -> {
-							tokens.add(BitwiseOperator.XOR);
-							++i;
-						}
-					}
+				default -> {
+					if (Character.isAlphabetic(c) || c == '_')
+						return lexIdentifier(i);
+					fail(i, "unexpected character '" + c + "'", "operator, operand or parenthesis");
+					return -1;
 				}
 			}
 
-			// identifier
-			if (Character.isAlphabetic(c) || c == '_') {
-				final var j = endIndexOfIdentifier(s, i);
-				tokens.add(Identifier.of(s.substring(i, j)));
-				i = j;
+			return i + 1;
+		}
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_';
+	}
+
+	/**
+	 * Lexes {@code s} without throwing on malformed input: the first error is
+	 * returned as a {@link Diagnostic} in the result. Invalid input therefore
+	 * costs the same as valid input up to the point of the error.
+	 */
+	static LexResult tryLex(String s) {
+		Objects.requireNonNull(s);
+		final var lexer = new Lexer(s);
+		for (var i = 0; i < lexer.length;) {
+			if (Character.isWhitespace(s.charAt(i))) {
+				++i;
 				continue;
 			}
-
-			++i;
+			i = lexer.lexToken(i);
+			if (i < 0)
+				break;
 		}
+		return new LexResult(lexer.tokens, lexer.offsets, lexer.error);
+	}
 
-		return tokens;
+	static List<Token> lex(String s) {
+		final var result = tryLex(s);
+		if (!result.ok())
+			throw new MathLexerException(result.error().toString());
+		return result.tokens();
 	}
 
 	public static void main(String[] args) {
@@ -1,108 +1,33 @@
 package math_interpreter;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
 
 public class MathParser {
 	/**
-	 * Finds the next non-nested {@code StructuralToken.RIGHT_PAREN} in
-	 * {@code tokens} starting at {@code leftParenIndex}. Mainly used when parsing
-	 * function calls.
-	 * 
-	 * @param tokens         A {@code List<Token>} typically provided by
-	 *                       {@code JsonLexer.lex}
-	 * @param leftParenIndex Start index of search, typically points to a
-	 *                       {@code StructuralToken.LEFT_PAREN}
-	 * @return The index of the next non-nested {@code StructuralToken.RIGHT_PAREN}
+	 * Stands in for the {@code LEFT_PAREN} of a function call on the operator
+	 * stack of {@link #convertToPostfix}, counting the commas seen at its level.
 	 */
-	static int indexOfNonNestedRightParen(List<Token> tokens, int leftParenIndex) {
-		final var size = tokens.size();
-		var depth = 0;
-		for (var i = leftParenIndex; i < size; ++i) {
-			final var token = tokens.get(i);
-			if (token == StructuralToken.LEFT_PAREN)
-				++depth;
-			if (token == StructuralToken.RIGHT_PAREN && --depth == 0)
-				return i;
-		}
-		return size;
-	}
+	private static final class PendingCall implements Token {
+		final String name;
+		int commas;
 
-	/**
-	 * Finds the next non-nested {@code StructuralToken.COMMA} in {@code tokens}
-	 * starting at {@code startIndex}. Mainly used when parsing function calls.
-	 * 
-	 * @param tokens     A {@code List<Token>} typically provided by
-	 *                   {@code JsonLexer.lex}
-	 * @param startIndex Start index of search, typically points to a token
-	 *                   immediately after a {@code StructuralToken.COMMA}
-	 * @return The index of the next non-nested {@code StructuralToken.COMMA}
-	 */
-	static int indexOfNonNestedComma(List<Token> tokens, int startIndex) {
-		final var size = tokens.size();
-		var depth = 0;
-		for (var i = startIndex; i < size; ++i) {
-			final var token = tokens.get(i);
-			if (token == StructuralToken.LEFT_PAREN)
-				++depth;
-			if (token == StructuralToken.RIGHT_PAREN)
-				--depth;
-			if (token == StructuralToken.COMMA && depth == 0)
-				return i;
-		}
-		return size;
-	}
-
-    private final class FunctionCall implements Operand {
-        private final String functionName;
-        private final List<Object> arguments;
-
-        FunctionCall(List<Token> tokens) {
-            final var fnIdentifier = tokens.get(0);
-            final var leftParen = tokens.get(1);
-            final var rightParenIndex = MathParser.indexOfNonNestedRightParen(tokens, 0);
-            final var rightParen = tokens.get(rightParenIndex);
-            arguments = new ArrayList<>();
-            final var argTokens = tokens.subList(1, rightParenIndex);
-            final var size = argTokens.size();
-            for (var i = 0; i < size; ++i) {
-                final var commaIndex = MathParser.indexOfNonNestedComma(tokens, 0);
-                arguments.add(evaluateExpression(argTokens.subList(i, commaIndex)));
-                i = commaIndex;
-            }
-        }
-
-        @Override
-        public Object getValue(HashMap<String, Object> variables) {
-            final var fn = (Function) variables.get(functionName);
-            if (fn == null)
-                throw new RuntimeException("Function " + functionName + " does not exist");
-
-        }
-    }
-
-	private static void parseFunctionCalls(List<Token> tokens) {
-		final var size = tokens.size();
-		for (var i = 0; i < size - 2; ++i) {
-			final var fnIdentifier = tokens.get(i);
-			final var leftParenIndex = i + 1;
-			final var leftParen = tokens.get(leftParenIndex);
-			if (fnIdentifier instanceof Identifier && leftParen == StructuralToken.LEFT_PAREN) {
-				final var rightParenIndex = indexOfNonNestedRightParen(tokens, leftParenIndex);
-                final var fnCallTokens = tokens.subList(i, rightParenIndex + 1);
-				tokens.removeAll(fnCallTokens);
-                tokens.add(new FunctionCall(fnCallTokens));
-                i = rightParenIndex;
-			}
+		PendingCall(String name) {
+			this.name = name;
 		}
 	}
 
 	/**
 	 * Converts the given list of tokens representing a mathematical expression to
-	 * postfix notation, using the Shunting Yard algorithm.
+	 * postfix notation, using the Shunting Yard algorithm. A function call
+	 * {@code f(a, b)} becomes {@code a b f/2}: its arguments followed by a
+	 * {@link FunctionCall}. Each token is pushed and popped at most once and
+	 * nesting lives on an explicit stack, so this runs in linear time and
+	 * arbitrarily deep parentheses cannot overflow the call stack.
 	 * 
 	 * @param infixTokens A {@code List<Token>} typically provided by
 	 *                    {@code JsonLexer.lex}
@@ -110,25 +35,29 @@ public class MathParser {
 	 *         in postfix notation
 	 */
 	private static List<Token> convertToPostfix(List<Token> infixTokens) {
-		final var operatorStack = new Stack<Token>();
-		final var postfix = new ArrayList<Token>();
+		final var operatorStack = new ArrayDeque<Token>();
+		final var size = infixTokens.size();
+		final var postfix = new ArrayList<Token>(size);
+
+		for (var i = 0; i < size; ++i) {
+			final var token = infixTokens.get(i);
+
+			if (token instanceof final Identifier identifier && i + 1 < size
+					&& infixTokens.get(i + 1) == StructuralToken.LEFT_PAREN) {
+				operatorStack.push(new PendingCall(identifier.identifier));
+				++i;
+				continue;
+			}
 
-		for (final var token : infixTokens) {
 			if (token instanceof Operand) {
 				postfix.add(token);
 			}
 
 			if (token instanceof final Operator o) {
-				if (!operatorStack.empty()) {
-					var topOperator = operatorStack.peek();
-					while (!operatorStack.empty() && topOperator != StructuralToken.LEFT_PAREN
-							&& ((Operator) topOperator).hasHigherPrecedenceThan(o)) {
-						postfix.add(operatorStack.pop());
-						if (!operatorStack.empty())
-							topOperator = operatorStack.peek();
-						else
-							break;
-					}
+				// a prefix operator has no left operand yet, so nothing before it can be complete
+				while (!(o instanceof UnaryOperator) && operatorStack.peek() instanceof final Operator topOperator
+						&& topOperator.hasHigherPrecedenceThan(o)) {
+					postfix.add(operatorStack.pop());
 				}
 				operatorStack.push(o);
 			}
@@ -137,50 +66,374 @@ public class MathParser {
 				operatorStack.push(token);
 			}
 
+			if (token == StructuralToken.COMMA) {
+				while (!(operatorStack.peek() instanceof PendingCall)) {
+					postfix.add(operatorStack.pop());
+				}
+				++((PendingCall) operatorStack.peek()).commas;
+			}
+
 			if (token == StructuralToken.RIGHT_PAREN) {
 				Token topOperator;
-				while ((topOperator = operatorStack.pop()) != StructuralToken.LEFT_PAREN) {
+				while ((topOperator = operatorStack.pop()) != StructuralToken.LEFT_PAREN
+						&& !(topOperator instanceof PendingCall)) {
 					postfix.add(topOperator);
 				}
+				if (topOperator instanceof final PendingCall call) {
+					// "f()" has no arguments; otherwise there is one more argument than commas
+					final var empty = infixTokens.get(i - 1) == StructuralToken.LEFT_PAREN;
+					postfix.add(new FunctionCall(call.name, empty ? 0 : call.commas + 1));
+				}
 			}
 		}
 
-		while (!operatorStack.empty()) {
+		while (!operatorStack.isEmpty()) {
 			postfix.add(operatorStack.pop());
 		}
 
 		return Collections.unmodifiableList(postfix);
 	}
 
+	/**
+	 * Outcome of {@link #tryParse}: either the expression in postfix notation, or
+	 * the first syntax error.
+	 */
+	static record ParseResult(List<Token> postfix, Diagnostic error) {
+		boolean ok() {
+			return error == null;
+		}
+	}
+
+	private static final String EXPECTED_OPERAND = "number, identifier, '(' or prefix operator";
+	private static final String EXPECTED_OPERATOR = "operator or ')'";
+
+	/**
+	 * Checks that {@code tokens} form a well-shaped expression: operands and
+	 * binary operators alternate, parentheses balance, commas only appear inside
+	 * function call parentheses and assignments have an identifier on the left.
+	 * A list that passes cannot make {@link #convertToPostfix} or
+	 * {@link #evaluatePostfix} run out of stack.
+	 *
+	 * @param offsets Source offset of each token, as returned by
+	 *                {@code MathLexer2.tryLex}
+	 * @return The first error, or {@code null} if the tokens are well-shaped
+	 */
+	static Diagnostic validate(String source, List<Token> tokens, int[] offsets) {
+		final var size = tokens.size();
+		if (size == 0)
+			return Diagnostic.at(source, source.length(), "empty expression", EXPECTED_OPERAND);
+
+		// one entry per open paren: true if it opened a function call's argument list
+		var parenIsCall = new boolean[8];
+		var parenOffset = new int[8];
+		var depth = 0;
+		var expectOperand = true;
+
+		for (var i = 0; i < size; ++i) {
+			final var token = tokens.get(i);
+			final var offset = offsets[i];
+
+			if (expectOperand) {
+				if (token instanceof Identifier && i + 1 < size && tokens.get(i + 1) == StructuralToken.LEFT_PAREN) {
+					// function call: consume the '(' too; an empty argument list is allowed
+					if (depth == parenIsCall.length) {
+						parenIsCall = Arrays.copyOf(parenIsCall, depth * 2);
+						parenOffset = Arrays.copyOf(parenOffset, depth * 2);
+					}
+					parenIsCall[depth] = true;
+					parenOffset[depth++] = offsets[++i];
+					if (i + 1 < size && tokens.get(i + 1) == StructuralToken.RIGHT_PAREN) {
+						--depth;
+						++i;
+						expectOperand = false;
+					}
+				} else if (token instanceof Operand) {
+					expectOperand = false;
+				} else if (token == StructuralToken.LEFT_PAREN) {
+					if (depth == parenIsCall.length) {
+						parenIsCall = Arrays.copyOf(parenIsCall, depth * 2);
+						parenOffset = Arrays.copyOf(parenOffset, depth * 2);
+					}
+					parenIsCall[depth] = false;
+					parenOffset[depth++] = offset;
+				} else if (!(token instanceof UnaryOperator)) {
+					return Diagnostic.at(source, offset, "unexpected " + describe(token), EXPECTED_OPERAND);
+				}
+				continue;
+			}
+
+			if (token == StructuralToken.RIGHT_PAREN) {
+				if (depth == 0)
+					return Diagnostic.at(source, offset, "unmatched ')'", "operator");
+				--depth;
+			} else if (token == StructuralToken.COMMA) {
+				if (depth == 0 || !parenIsCall[depth - 1])
+					return Diagnostic.at(source, offset, "',' outside of a function call", EXPECTED_OPERATOR);
+				expectOperand = true;
+			} else if (token instanceof AssignmentOperator) {
+				if (!(tokens.get(i - 1) instanceof Identifier))
+					return Diagnostic.at(source, offset, "left side of assignment must be an identifier", "identifier");
+				// as in the lexer: the identifier must start the expression or follow '('
+				if (i >= 2 && tokens.get(i - 2) != StructuralToken.LEFT_PAREN)
+					return Diagnostic.at(source, offset, "assignment must follow a lone identifier or '(' identifier",
+							EXPECTED_OPERATOR);
+				expectOperand = true;
+			} else if (token instanceof BinaryOperator) {
+				expectOperand = true;
+			} else {
+				return Diagnostic.at(source, offset, "unexpected " + describe(token), EXPECTED_OPERATOR);
+			}
+		}
+
+		if (expectOperand)
+			return Diagnostic.at(source, source.length(), "unexpected end of input", EXPECTED_OPERAND);
+		if (depth > 0)
+			return Diagnostic.at(source, parenOffset[depth - 1], "unclosed '('", "')'");
+		return null;
+	}
+
+	private static String describe(Token token) {
+		return switch (token) {
+			case final StructuralToken t -> switch (t) {
+				case LEFT_PAREN -> "'('";
+				case RIGHT_PAREN -> "')'";
+				case COMMA -> "','";
+				case NEWLINE -> "newline";
+			};
+			case final Operand o -> "operand " + o;
+			default -> "operator " + token;
+		};
+	}
+
+	/**
+	 * Lexes, validates and converts {@code source} to postfix without throwing on
+	 * malformed input. Errors come back as a {@link Diagnostic} in the result.
+	 */
+	static ParseResult tryParse(String source) {
+		return tryParse(source, MathLexer2.tryLex(source));
+	}
+
+	/**
+	 * Like {@link #tryParse(String)}, for a {@code source} that was already
+	 * lexed.
+	 */
+	static ParseResult tryParse(String source, MathLexer2.LexResult lexed) {
+		if (!lexed.ok())
+			return new ParseResult(null, lexed.error());
+		final var tokens = lexed.tokens();
+		final var error = validate(source, tokens, lexed.offsets());
+		if (error != null)
+			return new ParseResult(null, error);
+		return new ParseResult(convertToPostfix(tokens), null);
+	}
+
+	/**
+	 * Evaluates an expression previously accepted by {@link #tryParse}.
+	 */
+	Object evaluate(ParseResult parsed) {
+		if (!parsed.ok())
+			throw new IllegalArgumentException("cannot evaluate invalid expression: " + parsed.error());
+		return evaluatePostfix(parsed.postfix());
+	}
+
+	/**
+	 * Parses {@code source}, which may contain {@code $1}-style placeholders,
+	 * once for repeated evaluation with different parameters.
+	 *
+	 * @throws IllegalArgumentException If {@code source} is malformed
+	 */
+	static PreparedExpression prepare(String source) {
+		return new PreparedExpression(tryParse(source));
+	}
+
+	/**
+	 * Evaluates a prepared expression with the parameters in {@code bindings},
+	 * using this parser's variables, within the budget of the enclosing
+	 * evaluation if there is one.
+	 */
+	Object evaluate(PreparedExpression.Bindings bindings) {
+		return bindings.evaluate(variables, meter);
+	}
+
+	Object evaluate(PreparedExpression.Bindings bindings, EvaluationBudget budget) {
+		return bindings.evaluate(variables, new BudgetMeter(budget));
+	}
+
 	/**
 	 * Stores variables in this {@code MathParser}'s context.
 	 */
-	private final HashMap<String, Object> variables = new HashMap<>();
+	private final Variables variables;
+
+	MathParser() {
+		this(new MapVariables());
+	}
+
+	/**
+	 * @param variables Variable store for this parser, e.g. a
+	 *                  {@link LayeredVariables} session over shared definitions
+	 */
+	MathParser(Variables variables) {
+		this.variables = variables;
+	}
+
+	/**
+	 * Meter of the budgeted evaluation in progress, or {@code null} when
+	 * evaluating without limits. Nested evaluations (function calls) share it.
+	 */
+	private BudgetMeter meter;
 
 	Object evaluateExpression(List<Token> tokens) {
-        parseFunctionCalls(tokens);
 		return evaluatePostfix(convertToPostfix(tokens));
 	}
 
+	/**
+	 * Like {@link #evaluateExpression(List)}, but fails with a
+	 * {@link EvaluationBudget.BudgetExceededException} as soon as the evaluation
+	 * uses more than {@code budget} allows. Variables assigned before the budget
+	 * ran out keep their new values.
+	 */
+	Object evaluateExpression(List<Token> tokens, EvaluationBudget budget) {
+		final var outer = meter;
+		meter = new BudgetMeter(budget);
+		try {
+			return evaluateExpression(tokens);
+		} finally {
+			meter = outer;
+		}
+	}
+
+	/**
+	 * Compiles {@code tokens} into a {@link TieredExpression}, which profiles
+	 * operand types per operator and specializes itself once hot. Evaluate it
+	 * repeatedly with {@link #evaluate(TieredExpression)}.
+	 */
+	static TieredExpression compileTiered(List<Token> tokens) {
+		return new TieredExpression(convertToPostfix(tokens));
+	}
+
+	Object evaluate(TieredExpression expression) {
+		return expression.evaluate(variables, meter);
+	}
+
+	Object evaluate(TieredExpression expression, EvaluationBudget budget) {
+		return expression.evaluate(variables, new BudgetMeter(budget));
+	}
+
+	/**
+	 * Compiles {@code tokens} for forward-mode differentiation with respect to
+	 * the given variables. Evaluate it with
+	 * {@link #evaluate(GradientExpression, double[])}.
+	 */
+	static GradientExpression compileGradient(List<Token> tokens, String... withRespectTo) {
+		return new GradientExpression(convertToPostfix(tokens), withRespectTo);
+	}
+
+	/**
+	 * @param gradient Receives the partial derivatives, in the order the
+	 *                 variables were given to {@link #compileGradient}
+	 * @return The value of the expression
+	 */
+	double evaluate(GradientExpression expression, double[] gradient) {
+		return expression.evaluate(variables, gradient);
+	}
+
+	/**
+	 * Type-checks {@code tokens} and compiles them to a {@link TypedExpression},
+	 * taking identifier types from {@code declaredTypes}.
+	 *
+	 * @throws TypedExpression.TypeCheckException On a type error
+	 */
+	static TypedExpression compileTyped(List<Token> tokens, Map<String, StaticType> declaredTypes) {
+		return TypedExpression.compile(convertToPostfix(tokens), declaredTypes);
+	}
+
+	/**
+	 * Like {@link #compileTyped(List, Map)}, taking identifier types from the
+	 * values currently bound in this parser.
+	 */
+	TypedExpression compileTyped(List<Token> tokens) {
+		return TypedExpression.compile(convertToPostfix(tokens), identifier -> StaticType.of(variables.get(identifier)));
+	}
+
+	Object evaluate(TypedExpression expression) {
+		return expression.evaluate(variables);
+	}
+
+	/**
+	 * Compiles {@code tokens} into a {@link ParallelExpression}, which runs
+	 * expensive pure function calls in independent subtrees concurrently on the
+	 * common fork/join pool.
+	 */
+	static ParallelExpression compileParallel(List<Token> tokens) {
+		return new ParallelExpression(convertToPostfix(tokens));
+	}
+
+	Object evaluate(ParallelExpression expression) {
+		return expression.evaluate(variables);
+	}
+
 	private Object evaluatePostfix(List<Token> postfixTokens) {
-		final var operandStack = new Stack<Token>();
+		final var meter = this.meter;
+		if (meter == null)
+			return evaluatePostfix(postfixTokens, null);
+		meter.enter();
+		try {
+			return evaluatePostfix(postfixTokens, meter);
+		} finally {
+			meter.exit();
+		}
+	}
+
+	private Object evaluatePostfix(List<Token> postfixTokens, BudgetMeter meter) {
+		final var operandStack = new ArrayDeque<Token>();
+
+		final var size = postfixTokens.size();
+		for (var i = 0; i < size; ++i) {
+			final var token = postfixTokens.get(i);
+
+			if (meter != null)
+				meter.step();
 
-		for (final var token : postfixTokens) {
 			if (token instanceof Operand) {
 				operandStack.push(token);
+				if (meter != null)
+					meter.checkDepth(operandStack.size());
 			}
 
 			if (token instanceof final BinaryOperator binaryOperator) {
 				// pop in this order because some binary operators are not commutative
 				final var operand2 = ((Operand) operandStack.pop()).getValue(variables);
 				final var operand1 = ((Operand) operandStack.pop()).getValue(variables);
+
+				if (meter != null)
+					meter.reserve(token, operand1, operand2);
+
+				if (token == BinaryArithmeticOperator.TIMES && operand1 instanceof final Matrix a
+						&& operand2 instanceof final Matrix b) {
+					final var fused = fuseMatrixProductSum(postfixTokens, i, operandStack, a, b);
+					if (fused != null) {
+						if (meter != null)
+							meter.charge(fused, null, null);
+						operandStack.push(Value.of(fused));
+						// skip the addend operand (if it followed) and the '+'/'-' that consumed it
+						i += (postfixTokens.get(i + 1) instanceof Operand) ? 2 : 1;
+						continue;
+					}
+				}
+
 				final var result = binaryOperator.evaluate(operand1, operand2);
+				if (meter != null)
+					meter.charge(result, operand1, operand2);
 				operandStack.push(Value.of(result));
 			}
 
 			if (token instanceof final UnaryOperator unaryOperator) {
 				final var operand = ((Operand) operandStack.pop()).getValue(variables);
+				if (meter != null)
+					meter.reserve(token, operand, null);
 				final var result = unaryOperator.evaluate(operand);
+				if (meter != null)
+					meter.charge(result, operand, null);
 				operandStack.push(Value.of(result));
 			}
 
@@ -190,23 +443,82 @@ public class MathParser {
 				final var result = assignmentOperator.evaluate(variables, identifier, operand);
 				operandStack.push(Value.of(result));
 			}
+
+			if (token instanceof final FunctionCall call) {
+				final var arguments = new Object[call.argumentCount];
+				for (var k = arguments.length - 1; k >= 0; --k)
+					arguments[k] = ((Operand) operandStack.pop()).getValue(variables);
+				final var result = call.invoke(variables, arguments);
+				if (meter != null)
+					meter.charge(result, arguments);
+				operandStack.push(Value.of(result));
+				if (meter != null)
+					meter.checkDepth(operandStack.size());
+			}
 		}
 
 		return ((Operand) operandStack.peek()).getValue(variables);
 	}
 
+	/**
+	 * Recognizes {@code A B * C +} / {@code A B * C -} and {@code C A B * +} in
+	 * postfix form so the product and the sum are computed into one result array
+	 * by {@link Matrix#multiplyAdd}, instead of allocating a temporary product.
+	 *
+	 * @param timesIndex Index of the {@code TIMES} token in {@code postfixTokens}
+	 * @return The fused result, or {@code null} if the pattern does not apply (in
+	 *         which case {@code operandStack} is left untouched)
+	 */
+	private Matrix fuseMatrixProductSum(List<Token> postfixTokens, int timesIndex, ArrayDeque<Token> operandStack,
+			Matrix a, Matrix b) {
+		if (timesIndex + 1 >= postfixTokens.size())
+			return null;
+		final var next = postfixTokens.get(timesIndex + 1);
+
+		// C A B * +  (the addend is already on the stack)
+		if (next == BinaryArithmeticOperator.PLUS && !operandStack.isEmpty()
+				&& ((Operand) operandStack.peek()).getValue(variables) instanceof final Matrix c) {
+			operandStack.pop();
+			return a.multiplyAdd(b, c, 1);
+		}
+
+		// A B * C +  and  A B * C -
+		if (next instanceof final Operand addend && timesIndex + 2 < postfixTokens.size()) {
+			final var op = postfixTokens.get(timesIndex + 2);
+			if ((op == BinaryArithmeticOperator.PLUS || op == BinaryArithmeticOperator.MINUS)
+					&& addend.getValue(variables) instanceof final Matrix c) {
+				return a.multiplyAdd(b, c, (op == BinaryArithmeticOperator.PLUS) ? 1 : -1);
+			}
+		}
+
+		return null;
+	}
+
+	Object getVariable(String identifier) {
+		return variables.get(identifier);
+	}
+
+	void setVariable(String identifier, Object value) {
+		variables.put(identifier, value);
+	}
+
 	public static void main(String[] args) {
 		final var mathParser = new MathParser();
 		final var console = System.console();
 		String line;
 		System.out.print("> ");
 		while ((line = console.readLine()) != null) {
-			final var tokens = MathLexer2.lex(line);
-			System.out.println("Lexed tokens: " + tokens);
-			final var postfix = convertToPostfix(tokens);
-			System.out.println("Postfix: " + postfix);
+			final var parsed = tryParse(line);
+			if (!parsed.ok()) {
+				final var error = parsed.error();
+				System.out.println("  " + " ".repeat(error.column() - 1) + '^');
+				System.out.println(error);
+				System.out.print("> ");
+				continue;
+			}
+			System.out.println("Postfix: " + parsed.postfix());
 			try {
-				System.out.println(mathParser.evaluatePostfix(postfix));
+				System.out.println(mathParser.evaluate(parsed));
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
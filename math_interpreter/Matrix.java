@@ -0,0 +1,356 @@
+package math_interpreter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Dense {@code double} matrix stored as a flat row-major array. Instances are
+ * treated as immutable once they escape an operation; the only in-place
+ * mutation happens on freshly allocated results inside this class.
+ */
+final class Matrix {
+	static class MatrixException extends RuntimeException {
+		MatrixException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Edge length of the square tiles used by {@link #multiply}. 64 doubles per
+	 * row keeps three tiles (A, B and C) comfortably inside a typical L2 cache.
+	 */
+	private static final int BLOCK = 64;
+
+	/**
+	 * Below this many multiply-adds the fork/join overhead outweighs the gain, so
+	 * the product is computed on the calling thread.
+	 */
+	private static final long PARALLEL_THRESHOLD = 1L << 18;
+
+	final int rows, cols;
+	final double[] data;
+
+	private Matrix(int rows, int cols, double[] data) {
+		this.rows = rows;
+		this.cols = cols;
+		this.data = data;
+	}
+
+	static Matrix of(int rows, int cols, double... values) {
+		if (rows <= 0 || cols <= 0)
+			throw new MatrixException("dimensions must be positive");
+		if (values.length != rows * cols)
+			throw new MatrixException("expected " + rows * cols + " values, got " + values.length);
+		return new Matrix(rows, cols, values.clone());
+	}
+
+	static Matrix zeros(int rows, int cols) {
+		if (rows <= 0 || cols <= 0)
+			throw new MatrixException("dimensions must be positive");
+		return new Matrix(rows, cols, new double[rows * cols]);
+	}
+
+	static Matrix identity(int n) {
+		final var m = zeros(n, n);
+		for (var i = 0; i < n; ++i)
+			m.data[i * n + i] = 1;
+		return m;
+	}
+
+	double get(int row, int col) {
+		return data[row * cols + col];
+	}
+
+	Matrix transpose() {
+		final var result = new double[data.length];
+		// walk in tiles so neither the reads nor the writes stride across the whole array
+		for (var ii = 0; ii < rows; ii += BLOCK) {
+			final var iEnd = Math.min(ii + BLOCK, rows);
+			for (var jj = 0; jj < cols; jj += BLOCK) {
+				final var jEnd = Math.min(jj + BLOCK, cols);
+				for (var i = ii; i < iEnd; ++i)
+					for (var j = jj; j < jEnd; ++j)
+						result[j * rows + i] = data[i * cols + j];
+			}
+		}
+		return new Matrix(cols, rows, result);
+	}
+
+	Matrix add(Matrix other) {
+		requireSameShape(other, "+");
+		final var result = new double[data.length];
+		for (var i = 0; i < result.length; ++i)
+			result[i] = data[i] + other.data[i];
+		return new Matrix(rows, cols, result);
+	}
+
+	Matrix subtract(Matrix other) {
+		requireSameShape(other, "-");
+		final var result = new double[data.length];
+		for (var i = 0; i < result.length; ++i)
+			result[i] = data[i] - other.data[i];
+		return new Matrix(rows, cols, result);
+	}
+
+	Matrix scale(double factor) {
+		final var result = new double[data.length];
+		for (var i = 0; i < result.length; ++i)
+			result[i] = data[i] * factor;
+		return new Matrix(rows, cols, result);
+	}
+
+	Matrix multiply(Matrix other) {
+		return multiplyAdd(other, null, 1);
+	}
+
+	/**
+	 * Computes {@code this * b + sign * c} into a single result array, so chains
+	 * like {@code A * B + C} never materialize the intermediate product.
+	 *
+	 * @param c    Addend, or {@code null} for a plain product
+	 * @param sign {@code 1} for {@code A * B + C}, {@code -1} for {@code A * B - C}
+	 */
+	Matrix multiplyAdd(Matrix b, Matrix c, int sign) {
+		if (cols != b.rows)
+			throw new MatrixException("cannot multiply " + shape() + " by " + b.shape());
+		final var result = new double[rows * b.cols];
+		if (c != null) {
+			if (c.rows != rows || c.cols != b.cols)
+				throw new MatrixException("cannot add " + c.shape() + " to " + rows + 'x' + b.cols);
+			if (sign == 1)
+				System.arraycopy(c.data, 0, result, 0, result.length);
+			else
+				for (var i = 0; i < result.length; ++i)
+					result[i] = -c.data[i];
+		}
+		final var task = new MultiplyTask(data, b.data, result, cols, b.cols, 0, rows);
+		if ((long) rows * cols * b.cols < PARALLEL_THRESHOLD)
+			task.compute();
+		else
+			ForkJoinPool.commonPool().invoke(task);
+		return new Matrix(rows, b.cols, result);
+	}
+
+	/**
+	 * Accumulates {@code a[rowStart..rowEnd) * b} into {@code c}. Splits on rows
+	 * so that every subtask writes a disjoint slice of {@code c}.
+	 */
+	private static final class MultiplyTask extends RecursiveAction {
+		private final double[] a, b, c;
+		private final int n, m, rowStart, rowEnd;
+
+		MultiplyTask(double[] a, double[] b, double[] c, int n, int m, int rowStart, int rowEnd) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.n = n;
+			this.m = m;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+		}
+
+		@Override
+		protected void compute() {
+			final var height = rowEnd - rowStart;
+			if (height > BLOCK && (long) height * n * m >= PARALLEL_THRESHOLD) {
+				final var mid = rowStart + (height / 2 / BLOCK) * BLOCK;
+				invokeAll(
+					new MultiplyTask(a, b, c, n, m, rowStart, Math.max(mid, rowStart + BLOCK)),
+					new MultiplyTask(a, b, c, n, m, Math.max(mid, rowStart + BLOCK), rowEnd)
+				);
+				return;
+			}
+			multiplyBlocked(a, b, c, n, m, rowStart, rowEnd);
+		}
+	}
+
+	private static void multiplyBlocked(double[] a, double[] b, double[] c, int n, int m, int rowStart, int rowEnd) {
+		for (var ii = rowStart; ii < rowEnd; ii += BLOCK) {
+			final var iEnd = Math.min(ii + BLOCK, rowEnd);
+			for (var kk = 0; kk < n; kk += BLOCK) {
+				final var kEnd = Math.min(kk + BLOCK, n);
+				for (var jj = 0; jj < m; jj += BLOCK) {
+					final var jEnd = Math.min(jj + BLOCK, m);
+					for (var i = ii; i < iEnd; ++i) {
+						final var cRow = i * m;
+						final var aRow = i * n;
+						// i-k-j order: the innermost loop streams contiguously through b and c
+						for (var k = kk; k < kEnd; ++k) {
+							final var aik = a[aRow + k];
+							final var bRow = k * m;
+							for (var j = jj; j < jEnd; ++j)
+								c[cRow + j] += aik * b[bRow + j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Solves {@code this * x = rhs} using LU decomposition with partial pivoting.
+	 *
+	 * @param rhs Right-hand side with as many rows as this matrix; each column is
+	 *            solved independently
+	 * @return The solution {@code x}
+	 */
+	Matrix solve(Matrix rhs) {
+		if (rows != cols)
+			throw new MatrixException("cannot solve with non-square " + shape());
+		if (rhs.rows != rows)
+			throw new MatrixException("right-hand side " + rhs.shape() + " does not match " + shape());
+		final var n = rows;
+		final var m = rhs.cols;
+		final var lu = data.clone();
+		final var x = rhs.data.clone();
+
+		for (var k = 0; k < n; ++k) {
+			var pivot = k;
+			var max = Math.abs(lu[k * n + k]);
+			for (var i = k + 1; i < n; ++i) {
+				final var v = Math.abs(lu[i * n + k]);
+				if (v > max) {
+					max = v;
+					pivot = i;
+				}
+			}
+			if (max == 0)
+				throw new MatrixException("matrix is singular");
+			if (pivot != k) {
+				swapRows(lu, n, k, pivot);
+				swapRows(x, m, k, pivot);
+			}
+			final var diag = lu[k * n + k];
+			for (var i = k + 1; i < n; ++i) {
+				final var factor = lu[i * n + k] / diag;
+				if (factor == 0)
+					continue;
+				lu[i * n + k] = factor;
+				for (var j = k + 1; j < n; ++j)
+					lu[i * n + j] -= factor * lu[k * n + j];
+				for (var j = 0; j < m; ++j)
+					x[i * m + j] -= factor * x[k * m + j];
+			}
+		}
+
+		// back substitution on the upper triangle
+		for (var i = n - 1; i >= 0; --i) {
+			final var diag = lu[i * n + i];
+			for (var j = 0; j < m; ++j) {
+				var sum = x[i * m + j];
+				for (var k = i + 1; k < n; ++k)
+					sum -= lu[i * n + k] * x[k * m + j];
+				x[i * m + j] = sum / diag;
+			}
+		}
+
+		return new Matrix(n, m, x);
+	}
+
+	Matrix inverse() {
+		return solve(identity(rows));
+	}
+
+	/**
+	 * Matrix operations callable from expressions. Pure, so
+	 * {@link ParallelExpression} can run independent ones concurrently.
+	 */
+	private enum MatrixFunction implements MathFunction {
+		TRANSPOSE("transpose", 1), SOLVE("solve", 2), INVERSE("inv", 1);
+
+		final String name;
+		final int arity;
+
+		MatrixFunction(String name, int arity) {
+			this.name = name;
+			this.arity = arity;
+		}
+
+		private Matrix argument(Object[] arguments, int index) {
+			if (arguments[index] instanceof final Matrix m)
+				return m;
+			throw new MatrixException(name + " expects a matrix as argument " + (index + 1));
+		}
+
+		@Override
+		public Object apply(Object[] arguments) {
+			if (arguments.length != arity)
+				throw new MatrixException(name + " expects " + arity + " argument(s), got " + arguments.length);
+			return switch (this) {
+				case TRANSPOSE -> argument(arguments, 0).transpose();
+				case SOLVE -> argument(arguments, 0).solve(argument(arguments, 1));
+				case INVERSE -> argument(arguments, 0).inverse();
+			};
+		}
+
+		@Override
+		public boolean isPure() {
+			return true;
+		}
+
+		/** About a nanosecond per element moved or multiply-add */
+		@Override
+		public long estimatedNanos(Object[] arguments) {
+			if (arguments.length == 0 || !(arguments[0] instanceof final Matrix m))
+				return 0;
+			return (this == TRANSPOSE) ? m.data.length : (long) m.rows * m.rows * m.rows;
+		}
+	}
+
+	/**
+	 * Looks up {@code transpose(A)}, {@code solve(A, b)} and {@code inv(A)}.
+	 *
+	 * @return The function called {@code name}, or {@code null}
+	 */
+	static MathFunction function(String name) {
+		for (final var function : MatrixFunction.values())
+			if (function.name.equals(name))
+				return function;
+		return null;
+	}
+
+	private static void swapRows(double[] a, int width, int r1, int r2) {
+		final var o1 = r1 * width;
+		final var o2 = r2 * width;
+		for (var j = 0; j < width; ++j) {
+			final var tmp = a[o1 + j];
+			a[o1 + j] = a[o2 + j];
+			a[o2 + j] = tmp;
+		}
+	}
+
+	private void requireSameShape(Matrix other, String operator) {
+		if (rows != other.rows || cols != other.cols)
+			throw new MatrixException("cannot apply '" + operator + "' to " + shape() + " and " + other.shape());
+	}
+
+	private String shape() {
+		return rows + "x" + cols;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof final Matrix m && rows == m.rows && cols == m.cols && Arrays.equals(data, m.data);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * rows + cols) + Arrays.hashCode(data);
+	}
+
+	@Override
+	public String toString() {
+		final var sb = new StringBuilder("[");
+		for (var i = 0; i < rows; ++i) {
+			if (i > 0)
+				sb.append("; ");
+			for (var j = 0; j < cols; ++j) {
+				if (j > 0)
+					sb.append(", ");
+				sb.append(data[i * cols + j]);
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
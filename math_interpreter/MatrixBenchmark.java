@@ -0,0 +1,65 @@
+package math_interpreter;
+
+import java.util.Random;
+
+/**
+ * Compares {@link Matrix#multiply} against a naive i-j-k triple loop. Run with
+ * {@code java math_interpreter.MatrixBenchmark [sizes...]}; defaults to 64, 512
+ * and 2048.
+ */
+final class MatrixBenchmark {
+	private MatrixBenchmark() {}
+
+	private static double[] naiveMultiply(double[] a, double[] b, int n) {
+		final var c = new double[n * n];
+		for (var i = 0; i < n; ++i)
+			for (var j = 0; j < n; ++j) {
+				var sum = 0.0;
+				for (var k = 0; k < n; ++k)
+					sum += a[i * n + k] * b[k * n + j];
+				c[i * n + j] = sum;
+			}
+		return c;
+	}
+
+	private static double[] random(Random random, int n) {
+		final var values = new double[n * n];
+		for (var i = 0; i < values.length; ++i)
+			values[i] = random.nextDouble();
+		return values;
+	}
+
+	private static long time(Runnable r, int repetitions) {
+		final var start = System.nanoTime();
+		for (var i = 0; i < repetitions; ++i)
+			r.run();
+		return (System.nanoTime() - start) / repetitions;
+	}
+
+	public static void main(String[] args) {
+		final var sizes = (args.length == 0) ? new int[] { 64, 512, 2048 }
+				: java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+		final var random = new Random(42);
+
+		for (final var n : sizes) {
+			final var aData = random(random, n);
+			final var bData = random(random, n);
+			final var a = Matrix.of(n, n, aData);
+			final var b = Matrix.of(n, n, bData);
+			final var repetitions = (n <= 64) ? 200 : (n <= 512) ? 5 : 1;
+
+			// warm up both paths before measuring
+			for (var i = 0; i < ((n <= 512) ? 3 : 1); ++i) {
+				naiveMultiply(aData, bData, n);
+				a.multiply(b);
+			}
+
+			final var naiveNs = time(() -> naiveMultiply(aData, bData, n), repetitions);
+			final var blockedNs = time(() -> a.multiply(b), repetitions);
+			final var gflops = 2.0 * n * n * n / blockedNs;
+
+			System.out.printf("n=%-5d naive %10.3f ms   blocked/parallel %10.3f ms   speedup %6.2fx   %.2f GFLOP/s%n",
+					n, naiveNs / 1e6, blockedNs / 1e6, (double) naiveNs / blockedNs, gflops);
+		}
+	}
+}
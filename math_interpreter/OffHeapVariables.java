@@ -0,0 +1,277 @@
+package math_interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A {@link Variables} store that keeps identifiers and {@code Long},
+ * {@code Double} and {@code Boolean} values outside the Java heap, so millions
+ * of bindings cost the garbage collector nothing to trace and no per-entry
+ * objects. Values of any other type (matrices, functions) go to a small
+ * on-heap side table.
+ *
+ * <p>
+ * Bindings live in an open-addressing table with linear probing. Each slot
+ * holds the position of its key in a separate key area, the key's hash, its
+ * length and value type, and the value's 64 raw bits:
+ *
+ * <pre>
+ * 0  long keyPosition + 1 (0 marks an empty slot)
+ * 8  int  hash
+ * 12 int  keyLength | valueType &lt;&lt; 24 | WIDE_KEY
+ * 16 long value
+ * </pre>
+ *
+ * Keys are stored one byte per char when they are all Latin-1, two bytes per
+ * char otherwise, and compared in place without decoding. {@link #get} boxes
+ * the value it returns; nothing else allocates on the heap.
+ *
+ * <p>
+ * Both live in direct {@link ByteBuffer}s, which are indexed by {@code int},
+ * so each is split into pages: the table into pages of {@code 2^26} slots,
+ * the key area into pages of up to 1 GiB that no key straddles. Slot indices
+ * and key positions are {@code long}s, and only the last key page grows. The
+ * memory counts against {@code -XX:MaxDirectMemorySize}.
+ *
+ * <p>
+ * Not thread-safe. {@link #close} drops the buffers, whose memory is returned
+ * when they are collected; the store must not be used afterwards.
+ */
+final class OffHeapVariables implements Variables, AutoCloseable {
+	private static final int SLOT_SIZE = 24;
+	private static final int KEY_POSITION = 0, HASH = 8, LENGTH_AND_TYPE = 12, VALUE = 16;
+	private static final int SLOT_PAGE_SHIFT = 26;
+	private static final long SLOT_PAGE_MASK = (1L << SLOT_PAGE_SHIFT) - 1;
+	private static final int KEY_PAGE_SHIFT = 30;
+	private static final int KEY_PAGE_MASK = (1 << KEY_PAGE_SHIFT) - 1;
+
+	private static final int TYPE_NULL = 0, TYPE_LONG = 1, TYPE_DOUBLE = 2, TYPE_BOOLEAN = 3, TYPE_OBJECT = 4;
+	private static final int TYPE_SHIFT = 24;
+	private static final int WIDE_KEY = 1 << 30;
+	private static final int LENGTH_MASK = (1 << TYPE_SHIFT) - 1;
+
+	private ByteBuffer[] table;
+	private long capacity;
+	private long size;
+
+	private ByteBuffer[] keys;
+	/** Bytes used in the last key page */
+	private int keysUsed;
+
+	/** Values that have no primitive representation */
+	private final HashMap<String, Object> objects = new HashMap<>();
+
+	OffHeapVariables() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize Number of bindings to size the table for up front
+	 */
+	OffHeapVariables(int expectedSize) {
+		capacity = Long.highestOneBit(Math.max(16, expectedSize + expectedSize / 3L) - 1) << 1;
+		table = allocateTable(capacity);
+		keys = new ByteBuffer[] {allocate((int) Math.min(1 << KEY_PAGE_SHIFT, Math.max(1024, expectedSize * 8L)))};
+	}
+
+	private static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private static ByteBuffer[] allocateTable(long slots) {
+		final var pages = new ByteBuffer[(int) ((slots + SLOT_PAGE_MASK) >>> SLOT_PAGE_SHIFT)];
+		for (var i = 0; i < pages.length; ++i)
+			pages[i] = allocate((int) Math.min(slots - ((long) i << SLOT_PAGE_SHIFT), 1L << SLOT_PAGE_SHIFT) * SLOT_SIZE);
+		return pages;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/** @return Off-heap bytes currently reserved by the table and key area */
+	long reservedBytes() {
+		var bytes = capacity * SLOT_SIZE;
+		for (final var page : keys)
+			bytes += page.capacity();
+		return bytes;
+	}
+
+	private static int hash(String identifier) {
+		final var h = identifier.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static ByteBuffer page(ByteBuffer[] table, long slot) {
+		return table[(int) (slot >>> SLOT_PAGE_SHIFT)];
+	}
+
+	private static int offset(long slot) {
+		return (int) (slot & SLOT_PAGE_MASK) * SLOT_SIZE;
+	}
+
+	/**
+	 * @return The index of the slot bound to {@code identifier}, or of the empty
+	 *         slot where it would be inserted
+	 */
+	private long find(String identifier, int hash) {
+		final var mask = capacity - 1;
+		for (var slot = Integer.toUnsignedLong(hash) & mask;; slot = (slot + 1) & mask) {
+			final var page = page(table, slot);
+			final var offset = offset(slot);
+			if (page.getLong(offset + KEY_POSITION) == 0)
+				return slot;
+			if (page.getInt(offset + HASH) == hash && keyEquals(page, offset, identifier))
+				return slot;
+		}
+	}
+
+	private boolean keyEquals(ByteBuffer page, int offset, String identifier) {
+		final var lengthAndType = page.getInt(offset + LENGTH_AND_TYPE);
+		final var length = lengthAndType & LENGTH_MASK;
+		if (length != identifier.length())
+			return false;
+		final var position = page.getLong(offset + KEY_POSITION) - 1;
+		final var keyPage = keys[(int) (position >>> KEY_PAGE_SHIFT)];
+		final var at = (int) position & KEY_PAGE_MASK;
+		if ((lengthAndType & WIDE_KEY) != 0) {
+			for (var i = 0; i < length; ++i)
+				if (keyPage.getChar(at + 2 * i) != identifier.charAt(i))
+					return false;
+		} else {
+			for (var i = 0; i < length; ++i)
+				if ((char) (keyPage.get(at + i) & 0xFF) != identifier.charAt(i))
+					return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Object get(String identifier) {
+		final var slot = find(identifier, hash(identifier));
+		final var page = page(table, slot);
+		final var offset = offset(slot);
+		if (page.getLong(offset + KEY_POSITION) == 0)
+			return null;
+		final var bits = page.getLong(offset + VALUE);
+		return switch ((page.getInt(offset + LENGTH_AND_TYPE) >>> TYPE_SHIFT) & 0xF) {
+			case TYPE_LONG -> bits;
+			case TYPE_DOUBLE -> Double.longBitsToDouble(bits);
+			case TYPE_BOOLEAN -> bits != 0;
+			case TYPE_OBJECT -> objects.get(identifier);
+			default -> null;
+		};
+	}
+
+	@Override
+	public void put(String identifier, Object value) {
+		final var hash = hash(identifier);
+		var slot = find(identifier, hash);
+		final var isNew = page(table, slot).getLong(offset(slot) + KEY_POSITION) == 0;
+
+		if (isNew) {
+			if (size + 1 > capacity - capacity / 4) {
+				grow();
+				slot = find(identifier, hash);
+			}
+			page(table, slot).putLong(offset(slot) + KEY_POSITION, storeKey(identifier) + 1);
+			page(table, slot).putInt(offset(slot) + HASH, hash);
+			++size;
+		}
+
+		final var page = page(table, slot);
+		final var offset = offset(slot);
+		final var lengthAndType = isNew ? keyFlags(identifier) : page.getInt(offset + LENGTH_AND_TYPE);
+		final int type;
+		final long bits;
+		switch (value) {
+			case null -> { type = TYPE_NULL; bits = 0; }
+			case final Long l -> { type = TYPE_LONG; bits = l; }
+			case final Double d -> { type = TYPE_DOUBLE; bits = Double.doubleToRawLongBits(d); }
+			case final Boolean b -> { type = TYPE_BOOLEAN; bits = b ? 1 : 0; }
+			default -> { type = TYPE_OBJECT; bits = 0; }
+		}
+		if (type == TYPE_OBJECT)
+			objects.put(identifier, value);
+		else if (!objects.isEmpty())
+			objects.remove(identifier);
+
+		page.putInt(offset + LENGTH_AND_TYPE, (lengthAndType & (LENGTH_MASK | WIDE_KEY)) | type << TYPE_SHIFT);
+		page.putLong(offset + VALUE, bits);
+	}
+
+	private static int keyFlags(String identifier) {
+		if (identifier.length() > LENGTH_MASK)
+			throw new IllegalArgumentException("identifier too long");
+		return identifier.length() | (isLatin1(identifier) ? 0 : WIDE_KEY);
+	}
+
+	private static boolean isLatin1(String s) {
+		for (var i = 0; i < s.length(); ++i)
+			if (s.charAt(i) > 0xFF)
+				return false;
+		return true;
+	}
+
+	/** @return Position of the copied key in the key area */
+	private long storeKey(String identifier) {
+		final var length = identifier.length();
+		final var wide = !isLatin1(identifier);
+		// at most 2 * LENGTH_MASK, so a key always fits in one page
+		final var bytes = wide ? 2 * length : length;
+		var last = keys.length - 1;
+		if ((long) keysUsed + bytes > keys[last].capacity()) {
+			final var grown = Math.min(1L << KEY_PAGE_SHIFT, Math.max(2L * keys[last].capacity(), (long) keysUsed + bytes));
+			if ((long) keysUsed + bytes <= grown) {
+				final var page = allocate((int) grown);
+				page.put(0, keys[last], 0, keysUsed);
+				keys[last] = page;
+			} else {
+				// the last page is full size; start another, growing it from small again
+				keys = Arrays.copyOf(keys, ++last + 1);
+				keys[last] = allocate(Math.max(1024, bytes));
+				keysUsed = 0;
+			}
+		}
+		final var page = keys[last];
+		final var at = keysUsed;
+		if (wide) {
+			for (var i = 0; i < length; ++i)
+				page.putChar(at + 2 * i, identifier.charAt(i));
+		} else {
+			for (var i = 0; i < length; ++i)
+				page.put(at + i, (byte) identifier.charAt(i));
+		}
+		keysUsed += bytes;
+		return (long) last << KEY_PAGE_SHIFT | at;
+	}
+
+	/** Doubles the table, placing each slot by its stored hash; keys do not move. */
+	private void grow() {
+		final var oldTable = table;
+		final var oldCapacity = capacity;
+		capacity = oldCapacity * 2;
+		table = allocateTable(capacity);
+
+		final var mask = capacity - 1;
+		for (var i = 0L; i < oldCapacity; ++i) {
+			final var from = page(oldTable, i);
+			final var fromOffset = offset(i);
+			if (from.getLong(fromOffset + KEY_POSITION) == 0)
+				continue;
+			var j = Integer.toUnsignedLong(from.getInt(fromOffset + HASH)) & mask;
+			while (page(table, j).getLong(offset(j) + KEY_POSITION) != 0)
+				j = (j + 1) & mask;
+			page(table, j).put(offset(j), from, fromOffset, SLOT_SIZE);
+		}
+	}
+
+	@Override
+	public void close() {
+		table = null;
+		keys = null;
+		objects.clear();
+	}
+}
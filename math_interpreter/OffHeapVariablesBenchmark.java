@@ -0,0 +1,75 @@
+package math_interpreter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Loads {@code count} numeric bindings into either a {@link MapVariables} or an
+ * {@link OffHeapVariables} store and reports the retained heap, the GC work
+ * done while loading, the pause of a full collection with the store live, and
+ * the cost of evaluating an expression against it. Run one store per JVM so
+ * the numbers do not mix:
+ * {@code java -Xmx4g math_interpreter.OffHeapVariablesBenchmark heap|offheap [count]};
+ * defaults to 10000000 bindings.
+ */
+final class OffHeapVariablesBenchmark {
+	private OffHeapVariablesBenchmark() {}
+
+	private static long usedHeap() {
+		final var runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long[] gcCountAndMillis() {
+		long count = 0, millis = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] { count, millis };
+	}
+
+	public static void main(String[] args) {
+		final var offHeap = args.length > 0 && args[0].equals("offheap");
+		final var count = (args.length > 1) ? Integer.parseInt(args[1]) : 10_000_000;
+
+		System.gc();
+		final var baseHeap = usedHeap();
+		final var gcBefore = gcCountAndMillis();
+
+		final var loadStart = System.nanoTime();
+		final Variables variables = offHeap ? new OffHeapVariables(count) : new MapVariables();
+		for (var i = 0; i < count; ++i)
+			variables.put("v" + i, (i % 2 == 0) ? (Object) (long) i : (Object) (i * 0.5));
+		final var loadMs = (System.nanoTime() - loadStart) / 1e6;
+		final var gcAfter = gcCountAndMillis();
+
+		final var pauseStart = System.nanoTime();
+		System.gc();
+		final var fullGcMs = (System.nanoTime() - pauseStart) / 1e6;
+		final var retained = usedHeap() - baseHeap;
+
+		final var parser = new MathParser(variables);
+		final var expression = MathParser.compileTiered(MathLexer2.lex("v1234567 * 2 + v7654321 - v42"));
+		final var rounds = 2_000_000;
+		Object result = null;
+		for (var i = 0; i < rounds; ++i)
+			result = parser.evaluate(expression);
+		final var evalStart = System.nanoTime();
+		for (var i = 0; i < rounds; ++i)
+			result = parser.evaluate(expression);
+		final var evalNs = (double) (System.nanoTime() - evalStart) / rounds;
+
+		System.out.printf("%s, %,d bindings%n", offHeap ? "off-heap" : "HashMap", count);
+		System.out.printf("  retained heap:       %,.1f MB%n", retained / 1e6);
+		if (variables instanceof final OffHeapVariables o)
+			System.out.printf("  off-heap reserved:   %,.1f MB%n", o.reservedBytes() / 1e6);
+		System.out.printf("  load:                %,.0f ms, %d collections, %,d ms in GC%n", loadMs,
+				gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+		System.out.printf("  full GC, store live: %,.1f ms%n", fullGcMs);
+		System.out.printf("  evaluate:            %.1f ns (= %s)%n", evalNs, result);
+
+		if (variables instanceof final OffHeapVariables o)
+			o.close();
+	}
+}
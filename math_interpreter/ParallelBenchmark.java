@@ -0,0 +1,77 @@
+package math_interpreter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares sequential evaluation ({@link TieredExpression}) with
+ * {@link ParallelExpression} on {@code f(a) + g(b) * h(c) + k(d)} where each
+ * call takes about two milliseconds, once CPU-bound on the common fork/join
+ * pool and once waiting (like a call into another service) on virtual threads,
+ * and checks that an expression without calls costs the same either way. The
+ * CPU-bound speedup is limited by the available processors. Run with
+ * {@code java math_interpreter.ParallelBenchmark [iterations]}.
+ */
+final class ParallelBenchmark {
+	private ParallelBenchmark() {}
+
+	private static final long CALL_NANOS = 2_000_000;
+
+	/** Spins for {@code CALL_NANOS}, like an iterative solver */
+	private static final MathFunction SOLVE = MathFunction.pure(CALL_NANOS, arguments -> {
+		final var end = System.nanoTime() + CALL_NANOS;
+		var x = ((Number) arguments[0]).doubleValue();
+		while (System.nanoTime() < end)
+			x = Math.sqrt(x + 1);
+		return x;
+	});
+
+	/** Blocks for {@code CALL_NANOS} */
+	private static final MathFunction FETCH = MathFunction.pure(CALL_NANOS, arguments -> {
+		LockSupport.parkNanos(CALL_NANOS);
+		return arguments[0];
+	});
+
+	private static double seconds(Runnable body, int iterations) {
+		final var start = System.nanoTime();
+		for (var i = 0; i < iterations; ++i)
+			body.run();
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	private static void compare(String name, String source, Variables variables, Executor executor, int iterations) {
+		final var postfix = MathParser.tryParse(source).postfix();
+		final var sequential = new TieredExpression(postfix);
+		final var parallel = new ParallelExpression(postfix, ParallelExpression.DEFAULT_THRESHOLD_NANOS, executor);
+		for (var round = 0; round < 3; ++round) {
+			final var sequentialSeconds = seconds(() -> sequential.evaluate(variables), iterations);
+			final var parallelSeconds = seconds(() -> parallel.evaluate(variables), iterations);
+			System.out.printf("%-10s sequential %10.3f us/op   parallel %10.3f us/op   speedup %.2fx%n", name,
+					sequentialSeconds * 1e6 / iterations, parallelSeconds * 1e6 / iterations,
+					sequentialSeconds / parallelSeconds);
+		}
+	}
+
+	public static void main(String[] args) {
+		final var iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		System.out.printf("%d processors, common pool parallelism %d%n", Runtime.getRuntime().availableProcessors(),
+				ForkJoinPool.getCommonPoolParallelism());
+
+		final var variables = new MapVariables();
+		variables.put("a", 1L);
+		variables.put("b", 2.5);
+		variables.put("c", 3L);
+		variables.put("d", 4.0);
+		variables.put("solve", SOLVE);
+		variables.put("fetch", FETCH);
+
+		compare("no calls", "a * b + c - d / 2", variables, ForkJoinPool.commonPool(), iterations * 50_000);
+		compare("cpu-bound", "solve(a) + solve(b) * solve(c) + solve(d)", variables, ForkJoinPool.commonPool(),
+				iterations);
+		try (final var virtualThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+			compare("waiting", "fetch(a) + fetch(b) * fetch(c) + fetch(d)", variables, virtualThreads, iterations);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package math_interpreter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Evaluates an expression so that expensive calls to pure functions in
+ * independent subtrees run concurrently, e.g. {@code f(a) + g(b) * h(c)}
+ * calls {@code f}, {@code g} and {@code h} at the same time and then combines
+ * the results.
+ *
+ * <p>
+ * When compiled, each call's subtree in the postfix code is checked against
+ * the others. Only a call with some other call outside its own subtree can be
+ * forked, so an expression with fewer than two independent calls is
+ * evaluated by a plain {@link TieredExpression} at no extra cost. When
+ * evaluating, a forkable call is submitted to the executor if its function is
+ * {@link MathFunction#isPure pure} and estimates at least the threshold for
+ * its arguments. The rest of the postfix code keeps running; operators whose
+ * operands are still running are chained onto them instead of waiting.
+ *
+ * <p>
+ * Identifiers are read in order on the calling thread, and pure functions do
+ * not touch variables. Assignments and impure calls wait for every forked call
+ * first. So variables change in the same order as in sequential evaluation,
+ * and the first failing call's exception is thrown before any later side
+ * effect. Not thread-safe, like {@link TieredExpression}; evaluation budgets
+ * are not applied.
+ */
+final class ParallelExpression {
+	/** Calls estimated to take less than this run inline */
+	static final long DEFAULT_THRESHOLD_NANOS = 50_000;
+
+	/** An operand whose value is still being computed */
+	private static final class Pending implements Operand {
+		final CompletableFuture<Object> future;
+
+		Pending(CompletableFuture<Object> future) {
+			this.future = future;
+		}
+
+		@Override
+		public Object getValue(Variables variables) {
+			return join(future);
+		}
+	}
+
+	private final Token[] code;
+	/** For each postfix index, whether it is a call that has an independent call elsewhere */
+	private final boolean[] forkable;
+	private final TieredExpression sequential;
+	private final long thresholdNanos;
+	private final Executor executor;
+
+	ParallelExpression(List<Token> postfixTokens, long thresholdNanos, Executor executor) {
+		code = postfixTokens.toArray(new Token[0]);
+		this.thresholdNanos = thresholdNanos;
+		this.executor = executor;
+
+		// first postfix index of the subtree ending at each index
+		final var start = new int[code.length];
+		final var starts = new ArrayDeque<Integer>();
+		var firstCallEnd = Integer.MAX_VALUE;
+		var lastCallStart = -1;
+		for (var i = 0; i < code.length; ++i) {
+			var first = i;
+			switch (code[i]) {
+				case final Operand o -> {}
+				case final UnaryOperator o -> first = starts.pop();
+				case final FunctionCall call -> {
+					for (var k = 0; k < call.argumentCount; ++k)
+						first = starts.pop();
+					firstCallEnd = Math.min(firstCallEnd, i);
+					lastCallStart = Math.max(lastCallStart, first);
+				}
+				// binary and assignment operators
+				default -> {
+					starts.pop();
+					first = starts.pop();
+				}
+			}
+			start[i] = first;
+			starts.push(first);
+		}
+
+		// subtrees are nested or disjoint, so a call is independent of some other
+		// call iff one ends before it starts or starts after it ends
+		forkable = new boolean[code.length];
+		var anyForkable = false;
+		for (var i = 0; i < code.length; ++i) {
+			if (code[i] instanceof FunctionCall && (firstCallEnd < start[i] || lastCallStart > i)) {
+				forkable[i] = true;
+				anyForkable = true;
+			}
+		}
+		sequential = anyForkable ? null : new TieredExpression(postfixTokens);
+	}
+
+	ParallelExpression(List<Token> postfixTokens) {
+		this(postfixTokens, DEFAULT_THRESHOLD_NANOS, ForkJoinPool.commonPool());
+	}
+
+	/** @return Whether evaluation can fork at all */
+	boolean isParallel() {
+		return sequential == null;
+	}
+
+	Object evaluate(Variables variables) {
+		if (sequential != null)
+			return sequential.evaluate(variables);
+
+		final var operandStack = new ArrayDeque<Operand>();
+		final var forked = new ArrayList<CompletableFuture<Object>>();
+
+		try {
+			for (var i = 0; i < code.length; ++i) {
+				switch (code[i]) {
+					case final Operand operand -> operandStack.push(operand);
+
+					case final BinaryOperator operator -> {
+						final var operand2 = operandStack.pop();
+						final var operand1 = operandStack.pop();
+						if (operand1 instanceof Pending || operand2 instanceof Pending) {
+							operandStack.push(new Pending(
+									future(operand1, variables).thenCombine(future(operand2, variables), operator::evaluate)));
+						} else {
+							// pop in this order because some binary operators are not commutative
+							final var value2 = operand2.getValue(variables);
+							operandStack.push(Value.of(operator.evaluate(operand1.getValue(variables), value2)));
+						}
+					}
+
+					case final UnaryOperator operator -> {
+						final var operand = operandStack.pop();
+						operandStack.push((operand instanceof final Pending pending)
+								? new Pending(pending.future.thenApply(operator::evaluate))
+								: Value.of(operator.evaluate(operand.getValue(variables))));
+					}
+
+					case final AssignmentOperator operator -> {
+						joinAll(forked);
+						final var value = operandStack.pop().getValue(variables);
+						final var identifier = ((Identifier) operandStack.pop()).identifier;
+						operandStack.push(Value.of(operator.evaluate(variables, identifier, value)));
+					}
+
+					case final FunctionCall call -> operandStack.push(call(call, forkable[i], operandStack, forked, variables));
+
+					default -> throw new IllegalStateException("unexpected token " + code[i]);
+				}
+			}
+
+			joinAll(forked);
+			return operandStack.pop().getValue(variables);
+		} catch (RuntimeException | Error e) {
+			// a call forked earlier comes first in sequential order, so its failure takes precedence
+			joinAll(forked);
+			throw e;
+		}
+	}
+
+	private Operand call(FunctionCall call, boolean forkable, ArrayDeque<Operand> operandStack,
+			List<CompletableFuture<Object>> forked, Variables variables) {
+		final var function = call.function(variables);
+		final var operands = new Operand[call.argumentCount];
+		var anyPending = false;
+		for (var k = operands.length - 1; k >= 0; --k) {
+			operands[k] = operandStack.pop();
+			anyPending |= operands[k] instanceof Pending;
+		}
+
+		if (!function.isPure()) {
+			joinAll(forked);
+			return Value.of(function.apply(values(operands, variables)));
+		}
+
+		if (anyPending) {
+			// read identifiers now, then run once the pending arguments are done
+			final var futures = new ArrayList<CompletableFuture<Object>>(operands.length);
+			for (final var operand : operands)
+				futures.add(future(operand, variables));
+			final var result = CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).thenCompose(done -> {
+				final var arguments = new Object[futures.size()];
+				for (var k = 0; k < arguments.length; ++k)
+					arguments[k] = futures.get(k).join();
+				return forkable ? submit(function, arguments) : CompletableFuture.completedFuture(function.apply(arguments));
+			});
+			forked.add(result);
+			return new Pending(result);
+		}
+
+		final var arguments = values(operands, variables);
+		if (forkable && function.estimatedNanos(arguments) >= thresholdNanos) {
+			final var result = CompletableFuture.supplyAsync(() -> function.apply(arguments), executor);
+			forked.add(result);
+			return new Pending(result);
+		}
+		return Value.of(function.apply(arguments));
+	}
+
+	private CompletableFuture<Object> submit(MathFunction function, Object[] arguments) {
+		if (function.estimatedNanos(arguments) < thresholdNanos)
+			return CompletableFuture.completedFuture(function.apply(arguments));
+		return CompletableFuture.supplyAsync(() -> function.apply(arguments), executor);
+	}
+
+	private static Object[] values(Operand[] operands, Variables variables) {
+		final var values = new Object[operands.length];
+		for (var k = 0; k < operands.length; ++k)
+			values[k] = operands[k].getValue(variables);
+		return values;
+	}
+
+	private static CompletableFuture<Object> future(Operand operand, Variables variables) {
+		return (operand instanceof final Pending pending)
+				? pending.future
+				: CompletableFuture.completedFuture(operand.getValue(variables));
+	}
+
+	/** Waits for forked calls in the order they were forked, rethrowing the first failure */
+	private static void joinAll(List<CompletableFuture<Object>> forked) {
+		for (final var future : forked)
+			join(future);
+		forked.clear();
+	}
+
+	private static Object join(CompletableFuture<Object> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof final RuntimeException cause)
+				throw cause;
+			if (e.getCause() instanceof final Error error)
+				throw error;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package math_interpreter;
+
+/**
+ * Regression checks for operator handling in the parser: each expression is
+ * parsed and evaluated and its postfix form or value compared with the
+ * expected one, or it must be rejected by {@link MathParser#tryParse}. Run with {@code java math_interpreter.ParserCheck}; exits
+ * with status 1 on failure.
+ */
+final class ParserCheck {
+	private ParserCheck() {}
+
+	/** A case with neither {@code postfix} nor {@code value} must fail to parse */
+	private record Case(String source, String postfix, Object value) {}
+
+	private static final Case[] CASES = {
+		// a prefix operator after a binary one must not pop it early ("a b AND NOT")
+		new Case("a && !b", "[a, b, NOT, AND]", true),
+		new Case("b || !a", "[b, a, NOT, OR]", false),
+		new Case("x * -y", null, -6L),
+		new Case("x - -y", null, 5L),
+		new Case("-x * y + 1", null, -5L),
+		new Case("x + -y * 2", null, -4L),
+		new Case("!(a && b) && !b", null, true),
+		new Case("x < y == !a", null, false),
+		// an assignment target must start the expression or follow '('
+		new Case("x += 2", null, 4L),
+		new Case("(x += 2) * 3", null, 12L),
+		new Case("1 + x += 2", null, null),
+		new Case("1 + x = 2", null, null),
+		new Case("y * x -= 1", null, null),
+	};
+
+	public static void main(String[] args) {
+		var failed = false;
+		for (final var c : CASES) {
+			final var parser = new MathParser();
+			parser.setVariable("a", true);
+			parser.setVariable("b", false);
+			parser.setVariable("x", 2L);
+			parser.setVariable("y", 3L);
+
+			final var parsed = MathParser.tryParse(c.source());
+			String problem = null;
+			if (c.postfix() == null && c.value() == null) {
+				if (parsed.ok())
+					problem = "accepted, expected a syntax error";
+			} else if (!parsed.ok()) {
+				problem = parsed.error().toString();
+			} else if (c.postfix() != null && !c.postfix().equals(parsed.postfix().toString())) {
+				problem = "postfix " + parsed.postfix() + ", expected " + c.postfix();
+			} else {
+				try {
+					final var value = parser.evaluate(parsed);
+					if (!c.value().equals(value))
+						problem = "value " + value + ", expected " + c.value();
+				} catch (RuntimeException e) {
+					problem = e.toString();
+				}
+			}
+			System.out.printf("%-18s %s%n", c.source(), (problem == null) ? "ok" : "FAIL: " + problem);
+			failed |= problem != null;
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,99 @@
+package math_interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Floods an {@link EvaluationPipeline} from a producer that is much faster
+ * than evaluation, and reports throughput and peak heap use for several lane
+ * counts. Run with {@code java math_interpreter.PipelineBenchmark [jobs]}.
+ */
+final class PipelineBenchmark {
+	private PipelineBenchmark() {}
+
+	private static final int SESSIONS = 64;
+	private static final int BUFFER_SIZE = 256;
+
+	private static void run(int lanes, int jobs) throws InterruptedException {
+		final var parsers = new ConcurrentHashMap<Object, MathParser>();
+		final var done = new CountDownLatch(1);
+		final var received = new AtomicLong();
+		final var outOfOrder = new AtomicLong();
+		final var lastSequence = new long[SESSIONS];
+
+		final var pipeline = new EvaluationPipeline(session -> parsers.computeIfAbsent(session, s -> new MathParser()),
+				lanes, BUFFER_SIZE);
+		pipeline.subscribe(new Flow.Subscriber<EvaluationPipeline.Result>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(BUFFER_SIZE);
+			}
+
+			@Override
+			public void onNext(EvaluationPipeline.Result result) {
+				final var session = (Integer) result.session();
+				if (result.sequence() < lastSequence[session])
+					outOfOrder.incrementAndGet();
+				lastSequence[session] = result.sequence();
+				received.incrementAndGet();
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				throwable.printStackTrace();
+				done.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				done.countDown();
+			}
+		});
+
+		final var memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		final var baseline = memory.getHeapMemoryUsage().getUsed();
+		final var peak = new AtomicLong();
+		final var sampler = new Thread(() -> {
+			while (done.getCount() > 0) {
+				peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed() - baseline, Math::max);
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		sampler.setDaemon(true);
+		sampler.start();
+
+		final var start = System.nanoTime();
+		for (var i = 0; i < jobs; ++i) {
+			final var session = i % SESSIONS;
+			final var source = (i % 10 == 9) ? "x = (" : "x = " + (i % 1000) + " * 3 + sin(" + i + ") / 7";
+			pipeline.submit(new EvaluationPipeline.Job(session, i, source));
+		}
+		pipeline.close();
+		done.await();
+		final var elapsed = System.nanoTime() - start;
+		sampler.interrupt();
+
+		System.out.printf("lanes=%d  %,d jobs in %.2f s  %,.0f jobs/s  peak heap growth %.1f MB  out of order: %d%n",
+				lanes, received.get(), elapsed / 1e9, received.get() / (elapsed / 1e9), peak.get() / 1e6,
+				outOfOrder.get());
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final var jobs = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+		run(1, jobs / 10); // warm up
+		for (final var lanes : new int[] { 1, 2, 4, 8 })
+			run(lanes, jobs);
+	}
+}
@@ -0,0 +1,94 @@
+package math_interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shutdown checks for {@link EvaluationPipeline}: a subscriber that has taken
+ * only one result when the pipeline is closed must still receive every other
+ * result, and then completion, when it requests more after the lanes have
+ * drained. Run with {@code java math_interpreter.PipelineCheck}; exits with
+ * status 1 on failure.
+ */
+final class PipelineCheck {
+	private PipelineCheck() {}
+
+	/** Few enough that the results publisher buffers them all, so the lanes close before the subscriber catches up */
+	private static final int JOBS = 10;
+
+	/** Requests one result up front and the rest only when told to. */
+	private static final class SlowSubscriber implements Flow.Subscriber<EvaluationPipeline.Result> {
+		final List<Object> values = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch terminated = new CountDownLatch(1);
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		volatile Flow.Subscription subscription;
+		volatile Throwable failure;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+			subscribed.countDown();
+		}
+
+		@Override
+		public void onNext(EvaluationPipeline.Result result) {
+			values.add(result.value());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			failure = throwable;
+			terminated.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			terminated.countDown();
+		}
+	}
+
+	private static String run(int lanes) throws InterruptedException {
+		final var parser = new MathParser();
+		final var pipeline = new EvaluationPipeline(session -> parser, lanes, 2 * JOBS);
+		final var subscriber = new SlowSubscriber();
+		pipeline.subscribe(subscriber);
+		subscriber.subscribed.await();
+
+		for (var i = 0; i < JOBS; ++i)
+			pipeline.submit(new EvaluationPipeline.Job("session", i, i + " * 2"));
+		pipeline.close();
+		// long enough for every lane to drain and shut down, and for an idle results thread to exit
+		Thread.sleep(1500);
+
+		try {
+			subscriber.subscription.request(100);
+		} catch (RuntimeException e) {
+			return "request after close threw " + e;
+		}
+		if (!subscriber.terminated.await(10, TimeUnit.SECONDS))
+			return "no completion; received " + subscriber.values;
+		if (subscriber.failure != null)
+			return "failed with " + subscriber.failure;
+
+		final var expected = new ArrayList<Object>();
+		for (var i = 0; i < JOBS; ++i)
+			expected.add((long) i * 2);
+		return subscriber.values.equals(expected) ? null : "received " + subscriber.values;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		var failed = false;
+		for (final var lanes : new int[] {1, 3}) {
+			final var problem = run(lanes);
+			System.out.printf("lanes=%d  %s%n", lanes, (problem == null) ? "ok" : "FAIL: " + problem);
+			failed |= problem != null;
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
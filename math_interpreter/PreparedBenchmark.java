@@ -0,0 +1,102 @@
+package math_interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares building a formula string per call and parsing it with evaluating a
+ * {@link PreparedExpression} with bound parameters, in time and in bytes
+ * allocated per evaluation, then evaluates one prepared expression from
+ * several threads at once. Run with
+ * {@code java math_interpreter.PreparedBenchmark [iterations] [threads]}.
+ */
+final class PreparedBenchmark {
+	private PreparedBenchmark() {}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static long allocated() {
+		return THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	private static double concatenated(MathParser parser, int iterations) {
+		var sum = 0.0;
+		for (var i = 0; i < iterations; ++i) {
+			final var parsed = MathParser.tryParse(i + " * x + " + (i * 0.5));
+			sum += ((Number) parser.evaluate(parsed)).doubleValue();
+		}
+		return sum;
+	}
+
+	private static double prepared(MathParser parser, PreparedExpression.Bindings bindings, int iterations) {
+		var sum = 0.0;
+		for (var i = 0; i < iterations; ++i) {
+			bindings.setLong(1, i);
+			bindings.setDouble(2, i * 0.5);
+			sum += ((Number) parser.evaluate(bindings)).doubleValue();
+		}
+		return sum;
+	}
+
+	private static long bindOnly(PreparedExpression.Bindings bindings, int iterations) {
+		final var before = allocated();
+		for (var i = 0; i < iterations; ++i) {
+			bindings.setLong(1, i);
+			bindings.setDouble(2, i * 0.5);
+		}
+		return allocated() - before;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final var iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+		final var threadCount = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+		final var parser = new MathParser();
+		parser.setVariable("x", 3L);
+		final var expression = MathParser.prepare("$1 * x + $2");
+		final var bindings = expression.newBindings();
+
+		for (var round = 0; round < 3; ++round) {
+			var bytes = allocated();
+			var start = System.nanoTime();
+			final var a = concatenated(parser, iterations);
+			final var concatNs = (double) (System.nanoTime() - start) / iterations;
+			final var concatBytes = (double) (allocated() - bytes) / iterations;
+
+			bytes = allocated();
+			start = System.nanoTime();
+			final var b = prepared(parser, bindings, iterations);
+			final var preparedNs = (double) (System.nanoTime() - start) / iterations;
+			final var preparedBytes = (double) (allocated() - bytes) / iterations;
+
+			System.out.printf("concatenate+parse: %6.1f ns %6.0f B/op   prepared: %6.1f ns %6.0f B/op   setters: %d B total%s%n",
+					concatNs, concatBytes, preparedNs, preparedBytes, bindOnly(bindings, iterations),
+					(a == b) ? "" : "   MISMATCH " + a + " != " + b);
+		}
+
+		// one prepared expression, one set of bindings per thread
+		final var mismatches = new AtomicLong();
+		final var threads = new ArrayList<Thread>();
+		final var start = System.nanoTime();
+		for (var t = 0; t < threadCount; ++t) {
+			final var offset = t;
+			threads.add(Thread.ofPlatform().start(() -> {
+				final var own = expression.newBindings();
+				final var session = new MathParser();
+				session.setVariable("x", 3L);
+				for (var i = 0; i < iterations; ++i) {
+					own.setLong(1, i + offset);
+					own.setDouble(2, offset);
+					if (((Number) session.evaluate(own)).doubleValue() != 3.0 * (i + offset) + offset)
+						mismatches.incrementAndGet();
+				}
+			}));
+		}
+		for (final var thread : threads)
+			thread.join();
+		System.out.printf("%d threads sharing one prepared expression: %.1f ns/op overall, %d mismatches%n",
+				threadCount, (double) (System.nanoTime() - start) / ((long) iterations * threadCount), mismatches.get());
+	}
+}
@@ -0,0 +1,139 @@
+package math_interpreter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An expression with {@code $1}, {@code $2}, ... placeholders, lexed and
+ * converted to postfix once and then evaluated any number of times with
+ * different parameters, like a JDBC {@code PreparedStatement}.
+ *
+ * <p>
+ * The expression itself is immutable and can be shared between threads. Each
+ * thread binds parameters in its own {@link Bindings}, obtained from
+ * {@link #newBindings}; the primitive setters store into preallocated arrays
+ * and allocate nothing. Each {@code Bindings} evaluates through its own
+ * {@link TieredExpression}, so profiling state is never shared either.
+ *
+ * <pre>
+ * final var prepared = MathParser.prepare("$1 * x + $2");
+ * final var bindings = prepared.newBindings();
+ * bindings.setLong(1, 3);
+ * bindings.setDouble(2, 0.5);
+ * bindings.evaluate(variables);
+ * </pre>
+ */
+final class PreparedExpression {
+	private static final byte UNBOUND = 0, LONG = 1, DOUBLE = 2, BOOLEAN = 3;
+
+	private final MathParser.ParseResult parsed;
+	private final int parameterCount;
+
+	/**
+	 * @param parsed A successfully parsed expression
+	 */
+	PreparedExpression(MathParser.ParseResult parsed) {
+		if (!parsed.ok())
+			throw new IllegalArgumentException("cannot prepare invalid expression: " + parsed.error());
+		this.parsed = parsed;
+		var highest = 0;
+		for (final var token : parsed.postfix())
+			if (token instanceof final Parameter parameter)
+				highest = Math.max(highest, parameter.index);
+		parameterCount = highest;
+	}
+
+	/** @return The highest placeholder index used by the expression */
+	int parameterCount() {
+		return parameterCount;
+	}
+
+	List<Token> postfix() {
+		return parsed.postfix();
+	}
+
+	Bindings newBindings() {
+		return new Bindings();
+	}
+
+	/**
+	 * One thread's parameter values for this expression. Identifiers are looked
+	 * up in the {@link Variables} passed to {@link #evaluate}, so the same
+	 * bindings can be evaluated against different sessions. Not thread-safe.
+	 */
+	final class Bindings implements Variables {
+		private final long[] values = new long[parameterCount + 1];
+		private final byte[] types = new byte[parameterCount + 1];
+		// each thread profiles and specializes its own copy
+		private final TieredExpression code = new TieredExpression(parsed.postfix());
+		private Variables variables;
+
+		private void check(int index) {
+			if (index < 1 || index > parameterCount)
+				throw new IndexOutOfBoundsException(
+						"no parameter $" + index + " in an expression with " + parameterCount + " parameters");
+		}
+
+		void setLong(int index, long value) {
+			check(index);
+			values[index] = value;
+			types[index] = LONG;
+		}
+
+		void setDouble(int index, double value) {
+			check(index);
+			values[index] = Double.doubleToRawLongBits(value);
+			types[index] = DOUBLE;
+		}
+
+		void setBoolean(int index, boolean value) {
+			check(index);
+			values[index] = value ? 1 : 0;
+			types[index] = BOOLEAN;
+		}
+
+		void clearParameters() {
+			Arrays.fill(types, UNBOUND);
+		}
+
+		/** @return The value of {@code $index}, boxed for the generic evaluator */
+		Object parameter(int index) {
+			return switch (types[index]) {
+				case LONG -> values[index];
+				case DOUBLE -> Double.longBitsToDouble(values[index]);
+				case BOOLEAN -> values[index] != 0;
+				default -> throw new IllegalStateException("parameter $" + index + " is not bound");
+			};
+		}
+
+		/**
+		 * Evaluates the expression with the current parameters, reading and
+		 * assigning identifiers in {@code variables}.
+		 */
+		Object evaluate(Variables variables) {
+			return evaluate(variables, null);
+		}
+
+		/**
+		 * @param meter Budget to charge, or {@code null} to evaluate without limits
+		 */
+		Object evaluate(Variables variables, BudgetMeter meter) {
+			this.variables = variables;
+			try {
+				return code.evaluate(this, meter);
+			} finally {
+				this.variables = null;
+			}
+		}
+
+		@Override
+		public Object get(String identifier) {
+			return variables.get(identifier);
+		}
+
+		@Override
+		public void put(String identifier, Object value) {
+			variables.put(identifier, value);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package math_interpreter;
+
+import java.util.function.IntFunction;
+
+/**
+ * Lexes, parses and evaluates generated expressions of 1k, 10k, 100k and 1M
+ * tokens and fails if the time grows faster than linearly in the token count,
+ * or if deep nesting overflows the call stack. Run with
+ * {@code java math_interpreter.ScalingCheck}; exits with status 1 on failure.
+ */
+final class ScalingCheck {
+	private ScalingCheck() {}
+
+	private static final int[] SIZES = { 1_000, 10_000, 100_000, 1_000_000 };
+
+	/**
+	 * Allowed growth of the time per token from one size to the next (10x as many
+	 * tokens). Linear work stays near 1; quadratic work is about 10.
+	 */
+	private static final double MAX_GROWTH = 3;
+
+	private record Shape(String name, IntFunction<String> generator) {}
+
+	private static final Shape[] SHAPES = {
+		// 1 + 1 + 1 ...
+		new Shape("flat sum", tokens -> "1" + " + 1".repeat(tokens / 2)),
+		// ((((1))))
+		new Shape("nested parens", tokens -> "(".repeat(tokens / 2) + '1' + ")".repeat(tokens / 2)),
+		// 1 + (1 + (1 + ...))
+		new Shape("nested sums", tokens -> "1 + (".repeat(tokens / 4) + '1' + ")".repeat(tokens / 4)),
+		// f(f(f(1)))
+		new Shape("nested calls", tokens -> "f(".repeat(tokens / 3) + '1' + ")".repeat(tokens / 3)),
+		// g(1, 1, 1, ...)
+		new Shape("wide call", tokens -> "g(1" + ", 1".repeat(tokens / 2) + ')'),
+	};
+
+	private static MathParser newParser() {
+		final var parser = new MathParser();
+		parser.setVariable("f", (MathFunction) arguments -> arguments[0]);
+		parser.setVariable("g", (MathFunction) arguments -> (long) arguments.length);
+		return parser;
+	}
+
+	/** @return Best wall-clock time of {@code rounds} full lex/parse/evaluate runs */
+	private static long time(String source, int rounds) {
+		final var parser = newParser();
+		var best = Long.MAX_VALUE;
+		for (var r = 0; r < rounds; ++r) {
+			final var start = System.nanoTime();
+			final var parsed = MathParser.tryParse(source);
+			if (!parsed.ok())
+				throw new IllegalStateException(parsed.error().toString());
+			parser.evaluate(parsed);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	public static void main(String[] args) {
+		var failed = false;
+		for (final var shape : SHAPES) {
+			// warm up on the small sizes so the first measurement is not interpreted code
+			for (var i = 0; i < 20; ++i)
+				time(shape.generator().apply(SIZES[1]), 1);
+
+			var previousPerToken = Double.NaN;
+			for (final var size : SIZES) {
+				final var source = shape.generator().apply(size);
+				final double perToken;
+				try {
+					perToken = (double) time(source, (size >= 1_000_000) ? 3 : 10) / size;
+				} catch (StackOverflowError e) {
+					System.out.printf("%-14s %,10d tokens  FAIL: stack overflow%n", shape.name(), size);
+					failed = true;
+					break;
+				}
+				final var growth = perToken / previousPerToken;
+				final var ok = !(growth > MAX_GROWTH);
+				System.out.printf("%-14s %,10d tokens  %8.1f ns/token  %s%n", shape.name(), size, perToken,
+						Double.isNaN(growth) ? "" : String.format("x%.2f%s", growth, ok ? "" : "  FAIL: super-linear"));
+				failed |= !ok;
+				previousPerToken = perToken;
+			}
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,73 @@
+package math_interpreter;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Measures retained heap per session for layered sessions versus copying the
+ * shared definitions into every session. Run with
+ * {@code java math_interpreter.SessionFootprintBenchmark [sessions] [definitions]};
+ * defaults to 100000 sessions over 3000 shared definitions.
+ */
+final class SessionFootprintBenchmark {
+	private SessionFootprintBenchmark() {}
+
+	private static long usedHeap() {
+		final var runtime = Runtime.getRuntime();
+		for (var i = 0; i < 4; ++i) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		final var sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+		final var definitionCount = (args.length > 1) ? Integer.parseInt(args[1]) : 3_000;
+
+		final var definitions = new HashMap<String, Object>();
+		for (var i = 0; i < definitionCount; ++i)
+			definitions.put("c" + i, (i % 2 == 0) ? (Object) (long) i : (Object) (i * 0.5));
+		final var shared = SharedDefinitions.of(definitions);
+		final var assignment = MathLexer2.lex("x = c1 + c2");
+
+		// layered: every session is created and makes one assignment
+		var before = usedHeap();
+		final var layered = new ArrayList<MathParser>(sessions);
+		final var createStart = System.nanoTime();
+		for (var i = 0; i < sessions; ++i)
+			layered.add(new MathParser(shared.newSession()));
+		final var createNs = System.nanoTime() - createStart;
+		for (final var parser : layered)
+			parser.evaluateExpression(new ArrayList<>(assignment));
+		final var layeredBytes = usedHeap() - before;
+
+		System.out.printf("layered: %d sessions over %d definitions: %.1f MB total, %.0f bytes/session, %.0f ns/creation%n",
+				sessions, definitionCount, layeredBytes / 1e6, (double) layeredBytes / sessions, (double) createNs / sessions);
+		layered.clear();
+
+		// copying: measured on a sample and extrapolated, 100k full copies do not fit in a normal heap
+		final var sample = Math.min(sessions, 1_000);
+		before = usedHeap();
+		final var copies = new ArrayList<MathParser>(sample);
+		for (var i = 0; i < sample; ++i) {
+			final var variables = new MapVariables();
+			definitions.forEach(variables::put);
+			final var parser = new MathParser(variables);
+			parser.evaluateExpression(new ArrayList<>(assignment));
+			copies.add(parser);
+		}
+		final var copyBytes = usedHeap() - before;
+		// the copies must still be reachable while the heap is measured
+		Reference.reachabilityFence(copies);
+		final var perCopy = (double) copyBytes / sample;
+
+		System.out.printf("copying: %.0f bytes/session (sampled over %d), ~%.1f MB for %d sessions%n",
+				perCopy, sample, perCopy * sessions / 1e6, sessions);
+	}
+}
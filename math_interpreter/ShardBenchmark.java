@@ -0,0 +1,48 @@
+package math_interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Evaluates an expression set over generated rows with 1 to 8 worker
+ * processes and reports the scaling, and the merged statistics of one
+ * expression. Run with
+ * {@code java math_interpreter.ShardBenchmark [rows]}.
+ */
+final class ShardBenchmark {
+	private ShardBenchmark() {}
+
+	private static final List<String> EXPRESSIONS = List.of(
+			"price * quantity",
+			"price * quantity * (1 - discount) + shipping",
+			"sqrt(price * price + shipping * shipping) / (quantity + 1)",
+			"(price > 50.0) && (quantity > 10)",
+			"exp(-discount * 3) * sin(price) + cos(shipping)");
+
+	private static final List<String> COLUMNS = List.of("price", "quantity", "discount", "shipping");
+
+	public static void main(String[] args) throws InterruptedException {
+		final var rowCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2_000_000;
+		final var random = new Random(1);
+		final var rows = new ArrayList<Object[]>(rowCount);
+		for (var i = 0; i < rowCount; ++i)
+			rows.add(new Object[] { random.nextDouble() * 100, (long) random.nextInt(50), random.nextDouble() * 0.3,
+					random.nextDouble() * 20 });
+
+		long baseline = 0;
+		for (final var workers : new int[] { 1, 2, 4, 8 }) {
+			final var coordinator = new ShardCoordinator(EXPRESSIONS, COLUMNS, workers, 10_000, 3);
+			final var start = System.nanoTime();
+			final var evaluation = coordinator.evaluateWithStatistics(rows);
+			final var results = evaluation.results();
+			final var elapsed = System.nanoTime() - start;
+			if (baseline == 0)
+				baseline = elapsed;
+			System.out.printf("workers=%d  %,d rows x %d expressions in %.2f s  (%,.0f rows/s, speedup %.2fx)  first=%s%n",
+					workers, results.length, EXPRESSIONS.size(), elapsed / 1e9, rowCount / (elapsed / 1e9),
+					(double) baseline / elapsed, java.util.Arrays.toString(results[0]));
+			System.out.printf("  %s: %s%n", EXPRESSIONS.get(1), evaluation.statistics().get(1));
+		}
+	}
+}
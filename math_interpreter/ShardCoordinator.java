@@ -0,0 +1,226 @@
+package math_interpreter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evaluates a fixed set of expressions over many rows by sharding the rows
+ * across local {@link ShardWorker} processes. Each worker has its own JVM and
+ * heap, talks {@link ShardProtocol} over its stdin/stdout pipes, and pulls the
+ * next shard from a shared queue when it finishes one. If a worker dies, the
+ * shard it was working on is put back on the queue and a replacement worker
+ * is started.
+ */
+final class ShardCoordinator {
+	static class ShardFailedException extends RuntimeException {
+		ShardFailedException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * @param results    {@code results[row][expression]}, as returned by
+	 *                   {@link ShardCoordinator#evaluate}
+	 * @param statistics Statistics of each expression's numeric results, in
+	 *                   order, merged from every worker's partials
+	 */
+	record Evaluation(Object[][] results, List<StreamingStatistics> statistics) {}
+
+	private record Shard(int id, int start, int end, int attempt) {}
+
+	private final List<String> expressions;
+	private final List<String> columns;
+	private final int workers;
+	private final int shardSize;
+	private final int maxAttempts;
+
+	/**
+	 * @param expressions Expressions evaluated for every row
+	 * @param columns     Variable names bound to the values of each row, in order
+	 * @param workers     Number of worker processes
+	 * @param shardSize   Rows per shard
+	 * @param maxAttempts How many times a shard is tried before giving up
+	 */
+	ShardCoordinator(List<String> expressions, List<String> columns, int workers, int shardSize, int maxAttempts) {
+		this.expressions = List.copyOf(expressions);
+		this.columns = List.copyOf(columns);
+		this.workers = workers;
+		this.shardSize = shardSize;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @param rows Column values per row; each value must be {@code null}, a
+	 *             {@code Long}, {@code Double} or {@code Boolean}
+	 * @return {@code results[row][expression]}, in input order. A value that
+	 *         failed to evaluate is a {@link ShardProtocol.Failure}.
+	 * @throws ShardFailedException If a shard failed {@code maxAttempts} times
+	 */
+	Object[][] evaluate(List<Object[]> rows) throws InterruptedException {
+		return evaluateWithStatistics(rows).results();
+	}
+
+	/**
+	 * Like {@link #evaluate}, also summarizing each expression's numeric results.
+	 * Each driver thread keeps its own statistics and merges them at the end.
+	 */
+	Evaluation evaluateWithStatistics(List<Object[]> rows) throws InterruptedException {
+		final var results = new Object[rows.size()][];
+		final var statistics = new StreamingStatistics[expressions.size()];
+		for (var e = 0; e < statistics.length; ++e)
+			statistics[e] = new StreamingStatistics();
+		final var queue = new ConcurrentLinkedQueue<Shard>();
+		for (int start = 0, id = 0; start < rows.size(); start += shardSize, ++id)
+			queue.add(new Shard(id, start, Math.min(start + shardSize, rows.size()), 1));
+
+		final var failure = new AtomicReference<ShardFailedException>();
+		final var threads = new ArrayList<Thread>();
+		for (var w = 0; w < Math.min(workers, queue.size()); ++w) {
+			final var thread = new Thread(() -> drive(rows, results, statistics, queue, failure), "shard-driver-" + w);
+			thread.start();
+			threads.add(thread);
+		}
+		for (final var thread : threads)
+			thread.join();
+
+		if (failure.get() != null)
+			throw failure.get();
+		return new Evaluation(results, List.of(statistics));
+	}
+
+	/**
+	 * Feeds shards from {@code queue} to one worker process at a time, replacing
+	 * the process whenever it fails. However the driver exits, its worker is
+	 * either finished or destroyed.
+	 */
+	private void drive(List<Object[]> rows, Object[][] results, StreamingStatistics[] statistics,
+			ConcurrentLinkedQueue<Shard> queue, AtomicReference<ShardFailedException> failure) {
+		final var partials = new StreamingStatistics[statistics.length];
+		for (var e = 0; e < partials.length; ++e)
+			partials[e] = new StreamingStatistics();
+		Process process = null;
+		DataOutputStream out = null;
+		DataInputStream in = null;
+		Shard shard;
+		try {
+			while (failure.get() == null && (shard = queue.poll()) != null) {
+				try {
+					if (process == null) {
+						process = startWorker();
+						out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 1 << 16));
+						in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+						sendSetup(out);
+					}
+					sendShard(out, rows, shard);
+					receiveResults(in, results, shard);
+					accumulate(partials, results, shard);
+				} catch (IOException e) {
+					if (process != null)
+						process.destroyForcibly();
+					process = null;
+					if (shard.attempt() >= maxAttempts) {
+						failure.compareAndSet(null, new ShardFailedException(
+								"shard " + shard.id() + " failed " + shard.attempt() + " times", e));
+					} else {
+						queue.add(new Shard(shard.id(), shard.start(), shard.end(), shard.attempt() + 1));
+					}
+				} catch (RuntimeException e) {
+					// a bad row or value fails the same way on every attempt, so there is no retry
+					if (process != null)
+						process.destroyForcibly();
+					process = null;
+					failure.compareAndSet(null, new ShardFailedException("shard " + shard.id() + " failed", e));
+				}
+			}
+			synchronized (statistics) {
+				for (var e = 0; e < statistics.length; ++e)
+					statistics[e].merge(partials[e]);
+			}
+			if (process != null) {
+				final var finishing = process;
+				process = null;
+				finish(finishing, out);
+			}
+		} finally {
+			if (process != null)
+				process.destroyForcibly();
+		}
+	}
+
+	private static void finish(Process process, DataOutputStream out) {
+		try {
+			out.writeByte(ShardProtocol.FINISH);
+			out.flush();
+			process.waitFor();
+		} catch (IOException e) {
+			process.destroyForcibly();
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void accumulate(StreamingStatistics[] statistics, Object[][] results, Shard shard) {
+		for (var r = shard.start(); r < shard.end(); ++r)
+			for (var e = 0; e < statistics.length; ++e)
+				if (results[r][e] instanceof final Number n)
+					statistics[e].accept(n.doubleValue());
+	}
+
+	private static Process startWorker() throws IOException {
+		final var command = new ArrayList<String>();
+		command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardWorker.class.getName());
+		return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	private void sendSetup(DataOutputStream out) throws IOException {
+		out.writeByte(ShardProtocol.SETUP);
+		out.writeInt(expressions.size());
+		for (final var expression : expressions)
+			out.writeUTF(expression);
+		out.writeInt(columns.size());
+		for (final var column : columns)
+			out.writeUTF(column);
+	}
+
+	private void sendShard(DataOutputStream out, List<Object[]> rows, Shard shard) throws IOException {
+		out.writeByte(ShardProtocol.SHARD);
+		out.writeInt(shard.id());
+		out.writeInt(shard.end() - shard.start());
+		for (var r = shard.start(); r < shard.end(); ++r) {
+			final var row = rows.get(r);
+			if (row.length != columns.size())
+				throw new IllegalArgumentException("row " + r + " has " + row.length + " values, expected " + columns.size());
+			for (final var value : row)
+				ShardProtocol.writeValue(out, value);
+		}
+		out.flush();
+	}
+
+	private void receiveResults(DataInputStream in, Object[][] results, Shard shard) throws IOException {
+		final var shardId = in.readInt();
+		final var count = in.readInt();
+		if (shardId != shard.id() || count != shard.end() - shard.start())
+			throw new IOException("worker answered shard " + shardId + " (" + count + " rows) for shard " + shard.id());
+		// decode into a scratch array first so a worker dying mid-shard leaves no partial results behind
+		final var shardResults = new Object[count][];
+		for (var r = 0; r < count; ++r) {
+			final var values = new Object[expressions.size()];
+			for (var e = 0; e < values.length; ++e)
+				values[e] = ShardProtocol.readValue(in);
+			shardResults[r] = values;
+		}
+		System.arraycopy(shardResults, 0, results, shard.start(), count);
+	}
+}
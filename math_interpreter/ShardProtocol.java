@@ -0,0 +1,69 @@
+package math_interpreter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary wire format between {@link ShardCoordinator} and {@link ShardWorker}.
+ *
+ * <pre>
+ * coordinator -> worker
+ *   SETUP  : byte SETUP, int n, n * UTF expression, int m, m * UTF column
+ *   SHARD  : byte SHARD, int shardId, int rows, rows * m * value
+ *   FINISH : byte FINISH
+ * worker -> coordinator
+ *   RESULT : int shardId, int rows, rows * n * value
+ * value
+ *   byte NULL | byte LONG, long | byte DOUBLE, double | byte BOOLEAN, byte
+ *   | byte ERROR, UTF message
+ * </pre>
+ */
+final class ShardProtocol {
+	private ShardProtocol() {}
+
+	static final byte SETUP = 1, SHARD = 2, FINISH = 3;
+
+	private static final byte NULL = 0, LONG = 1, DOUBLE = 2, BOOLEAN = 3, ERROR = 4;
+
+	/**
+	 * A value that could not be computed, carried in place of a result so one
+	 * bad row does not fail the whole shard.
+	 */
+	record Failure(String message) {}
+
+	static void writeValue(DataOutputStream out, Object value) throws IOException {
+		switch (value) {
+			case null -> out.writeByte(NULL);
+			case final Long l -> {
+				out.writeByte(LONG);
+				out.writeLong(l);
+			}
+			case final Double d -> {
+				out.writeByte(DOUBLE);
+				out.writeDouble(d);
+			}
+			case final Boolean b -> {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean(b);
+			}
+			case final Failure f -> {
+				out.writeByte(ERROR);
+				out.writeUTF(f.message());
+			}
+			default -> throw new IllegalArgumentException("cannot send " + value.getClass().getSimpleName() + " to a worker");
+		}
+	}
+
+	static Object readValue(DataInputStream in) throws IOException {
+		final var tag = in.readByte();
+		return switch (tag) {
+			case NULL -> null;
+			case LONG -> in.readLong();
+			case DOUBLE -> in.readDouble();
+			case BOOLEAN -> in.readBoolean();
+			case ERROR -> new Failure(in.readUTF());
+			default -> throw new IOException("corrupt value tag " + tag);
+		};
+	}
+}
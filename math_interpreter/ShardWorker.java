@@ -0,0 +1,72 @@
+package math_interpreter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Worker process for {@link ShardCoordinator}. Speaks {@link ShardProtocol}
+ * over stdin/stdout: compiles the expression set once, then evaluates every
+ * row of each shard it receives with a fresh set of column bindings.
+ */
+final class ShardWorker {
+	private ShardWorker() {}
+
+	public static void main(String[] args) throws IOException {
+		final var in = new DataInputStream(new BufferedInputStream(System.in, 1 << 16));
+		final var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+		// stdout is the result channel: anything printed during evaluation goes to stderr instead
+		System.setOut(System.err);
+
+		if (in.readByte() != ShardProtocol.SETUP)
+			throw new IOException("expected SETUP");
+		final var expressions = new ArrayList<MathParser.ParseResult>();
+		for (var i = in.readInt(); i > 0; --i)
+			expressions.add(MathParser.tryParse(in.readUTF()));
+		final var columns = new String[in.readInt()];
+		for (var i = 0; i < columns.length; ++i)
+			columns[i] = in.readUTF();
+
+		byte command;
+		while ((command = in.readByte()) == ShardProtocol.SHARD) {
+			final var shardId = in.readInt();
+			// read the whole shard before answering: the coordinator only starts reading once it has sent
+			// everything, so writing early could fill both pipes and deadlock
+			final var rows = new Object[in.readInt()][columns.length];
+			for (final var row : rows)
+				for (var c = 0; c < columns.length; ++c)
+					row[c] = ShardProtocol.readValue(in);
+
+			out.writeInt(shardId);
+			out.writeInt(rows.length);
+			for (final var row : rows) {
+				// a fresh session per row: nothing assigned for one row leaks into the next
+				final var parser = new MathParser();
+				for (var c = 0; c < columns.length; ++c)
+					parser.setVariable(columns[c], row[c]);
+				for (final var expression : expressions)
+					ShardProtocol.writeValue(out, evaluate(parser, expression));
+			}
+			out.flush();
+		}
+		if (command != ShardProtocol.FINISH)
+			throw new IOException("unexpected command " + command);
+	}
+
+	private static Object evaluate(MathParser parser, MathParser.ParseResult expression) {
+		if (!expression.ok())
+			return new ShardProtocol.Failure(expression.error().toString());
+		try {
+			final var value = parser.evaluate(expression);
+			return (value == null || value instanceof Number || value instanceof Boolean) ? value
+					: new ShardProtocol.Failure("unsupported result type " + value.getClass().getSimpleName());
+		} catch (RuntimeException e) {
+			return new ShardProtocol.Failure(String.valueOf(e));
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package math_interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of definitions (constants, functions) shared by many
+ * sessions. Publishing new definitions means building a new instance; sessions
+ * created from the old one keep seeing it unchanged.
+ */
+final class SharedDefinitions {
+	static final SharedDefinitions EMPTY = new SharedDefinitions(new HashMap<>());
+
+	// never mutated after construction, so safe to read from any thread
+	private final HashMap<String, Object> definitions;
+
+	private SharedDefinitions(HashMap<String, Object> definitions) {
+		this.definitions = definitions;
+	}
+
+	static SharedDefinitions of(Map<String, ?> definitions) {
+		return new SharedDefinitions(new HashMap<>(definitions));
+	}
+
+	/**
+	 * @return A new instance with {@code overrides} layered over these
+	 *         definitions; this instance is left untouched
+	 */
+	SharedDefinitions with(Map<String, ?> overrides) {
+		final var merged = new HashMap<>(definitions);
+		merged.putAll(overrides);
+		return new SharedDefinitions(merged);
+	}
+
+	Object get(String identifier) {
+		return definitions.get(identifier);
+	}
+
+	boolean contains(String identifier) {
+		return definitions.containsKey(identifier);
+	}
+
+	int size() {
+		return definitions.size();
+	}
+
+	/** Starts a new session over these definitions in O(1). */
+	LayeredVariables newSession() {
+		return new LayeredVariables(this);
+	}
+}
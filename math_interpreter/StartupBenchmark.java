@@ -0,0 +1,94 @@
+package math_interpreter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures time to first result of a one-line evaluation in a fresh JVM, the
+ * way {@code launcher.sh} runs {@link Launcher}: without any class-data
+ * sharing, with the JDK's default archive only, and with an application
+ * archive recorded by {@code Launcher --train}. Needs the interpreter packaged
+ * as a jar, since CDS only archives classes loaded from jars ({@code launcher.sh}
+ * builds one). Run with
+ * {@code java math_interpreter.StartupBenchmark JAR [runs] [expression]}.
+ */
+final class StartupBenchmark {
+	private StartupBenchmark() {}
+
+	// the same options launcher.sh uses
+	private static final List<String> OPTIONS = List.of("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC");
+
+	private static String java() {
+		return ProcessHandle.current().info().command().orElse("java");
+	}
+
+	private static List<String> command(List<String> archive, String jar, String... arguments) {
+		final var command = new ArrayList<String>();
+		command.add(java());
+		command.addAll(OPTIONS);
+		command.addAll(archive);
+		command.addAll(List.of("-cp", jar, "math_interpreter.Launcher"));
+		command.addAll(List.of(arguments));
+		return command;
+	}
+
+	/** @return Milliseconds until the first line of output, after checking it */
+	private static double timeToFirstResult(List<String> command, String expected) throws IOException, InterruptedException {
+		final var start = System.nanoTime();
+		final var process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		final String line;
+		try (final var out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			line = out.readLine();
+		}
+		final var millis = (System.nanoTime() - start) / 1e6;
+		if (process.waitFor() != 0 || !expected.equals(line))
+			throw new IllegalStateException(command + " printed " + line + ", expected " + expected);
+		return millis;
+	}
+
+	private static void run(String name, List<String> command, String expected, int runs)
+			throws IOException, InterruptedException {
+		final var millis = new double[runs];
+		for (var i = 0; i < runs; ++i)
+			millis[i] = timeToFirstResult(command, expected);
+		Arrays.sort(millis);
+		System.out.printf("%-22s median %6.1f ms   min %6.1f ms   max %6.1f ms%n", name, millis[runs / 2], millis[0],
+				millis[runs - 1]);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 0) {
+			System.err.println("usage: StartupBenchmark JAR [runs] [expression]");
+			System.exit(2);
+		}
+		final var jar = Path.of(args[0]).toAbsolutePath().toString();
+		final var runs = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		final var expression = (args.length > 2) ? args[2] : "x = 3 * 4 + 2.5 ** 2";
+
+		final var directory = Files.createTempDirectory("startup-benchmark");
+		final var archive = directory.resolve("app.jsa");
+		final var train = new ProcessBuilder(
+				command(List.of("-XX:ArchiveClassesAtExit=" + archive), jar, "--train")).inheritIO().start();
+		if (train.waitFor() != 0 || !Files.exists(archive))
+			throw new IllegalStateException("training did not produce " + archive);
+
+		// the result printed with the archive must match the one without
+		final var expected = new BufferedReader(new InputStreamReader(
+				new ProcessBuilder(command(List.of(), jar, expression)).start().getInputStream())).readLine();
+		System.out.printf("%s = %s, %d runs each%n", expression, expected, runs);
+		for (var round = 0; round < 2; ++round) {
+			run("no CDS", command(List.of("-Xshare:off"), jar, expression), expected, runs);
+			run("JDK default archive", command(List.of(), jar, expression), expected, runs);
+			run("application archive", command(List.of("-XX:SharedArchiveFile=" + archive), jar, expression),
+					expected, runs);
+		}
+		Files.delete(archive);
+		Files.delete(directory);
+	}
+}
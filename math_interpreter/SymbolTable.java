@@ -0,0 +1,105 @@
+package math_interpreter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns {@link Identifier}s in a fixed-size, set-associative table, so that
+ * lexing the same name again returns the same token without allocating, while
+ * the table never grows however many distinct names it sees.
+ *
+ * <p>
+ * A name hashes to one set of {@value #WAYS} slots. A miss claims a free slot
+ * in that set or, when the set is full, evicts one of its entries in turn.
+ * Lookups and inserts are single reads and compare-and-sets, so the table is
+ * safe to use from any number of threads without locking. The set index is
+ * salted per run, so it cannot be predicted from {@code String.hashCode}
+ * alone. Flooding the table with names can only evict entries; it cannot make
+ * it grow. After eviction, the same name is interned again as a new token, so
+ * compare names, not tokens, to compare identifiers.
+ *
+ * <p>
+ * There are no integer symbol IDs. An ID that stayed the same for a name
+ * would need a table that remembers every name it has seen, which is the
+ * unbounded growth eviction exists to prevent; the interned token is the only
+ * handle, and it is only as stable as the entry that holds it.
+ */
+final class SymbolTable {
+	static final int WAYS = 4;
+
+	private static final int SALT = ThreadLocalRandom.current().nextInt() | 1;
+
+	private final AtomicReferenceArray<Identifier> slots;
+	private final int setMask;
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of identifiers held, rounded up to a power
+	 *                 of two of at least {@value #WAYS}
+	 */
+	SymbolTable(int capacity) {
+		final var slotCount = Math.max(WAYS, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+		slots = new AtomicReferenceArray<>(slotCount);
+		setMask = slotCount / WAYS - 1;
+	}
+
+	/** @return The identifier named by {@code source.substring(start, end)} */
+	Identifier intern(String source, int start, int end) {
+		var hash = 0;
+		for (var i = start; i < end; ++i)
+			hash = 31 * hash + source.charAt(i);
+		final var base = set(hash) * WAYS;
+		final var length = end - start;
+
+		for (var way = 0; way < WAYS; ++way) {
+			final var identifier = slots.getAcquire(base + way);
+			if (matches(identifier, source, start, length))
+				return identifier;
+		}
+
+		final var created = new Identifier(source.substring(start, end));
+		for (var way = 0; way < WAYS; ++way) {
+			if (slots.compareAndSet(base + way, null, created))
+				return created;
+			// another thread may have just interned the same name here
+			final var raced = slots.getAcquire(base + way);
+			if (matches(raced, source, start, length))
+				return raced;
+		}
+		// set is full: the table-wide eviction count picks the way, which spreads evictions over all ways
+		slots.setRelease(base + (int) (evictions.getAndIncrement() & (WAYS - 1)), created);
+		return created;
+	}
+
+	Identifier intern(String name) {
+		return intern(name, 0, name.length());
+	}
+
+	private static boolean matches(Identifier identifier, String source, int start, int length) {
+		return identifier != null && identifier.identifier.length() == length
+				&& identifier.identifier.regionMatches(0, source, start, length);
+	}
+
+	private int set(int hash) {
+		final var mixed = (hash ^ SALT) * 0x9E3779B9;
+		return (mixed ^ (mixed >>> 16)) & setMask;
+	}
+
+	int capacity() {
+		return slots.length();
+	}
+
+	/** @return Number of identifiers currently held */
+	int size() {
+		var size = 0;
+		for (var i = 0; i < slots.length(); ++i)
+			if (slots.getPlain(i) != null)
+				++size;
+		return size;
+	}
+
+	long evictions() {
+		return evictions.get();
+	}
+}
@@ -0,0 +1,90 @@
+package math_interpreter;
+
+import java.util.Objects;
+
+/**
+ * Deoptimization checks for {@link TieredExpression}: each expression is run
+ * until its sites specialize on one set of operand types, then fed values of
+ * another type, and every result is compared with untiered evaluation of the
+ * same expression. Run with {@code java math_interpreter.TieredCheck}; exits
+ * with status 1 on failure.
+ */
+final class TieredCheck {
+	private TieredCheck() {}
+
+	/**
+	 * @param hot         Values of {@code x} and {@code y} the sites specialize on
+	 * @param cold        Values fed to the specialized sites afterwards
+	 * @param specializes Whether {@code hot} should specialize any site
+	 */
+	private record Case(String source, Object[] hot, Object[] cold, boolean specializes) {}
+
+	private static final Matrix M = Matrix.of(2, 2, 1, 2, 3, 4);
+
+	private static final Case[] CASES = {
+		new Case("x + y * 2", new Object[] {3L, 4L}, new Object[] {2.5, 4L}, true),
+		new Case("x - y", new Object[] {3L, 4L}, new Object[] {M, M}, true),
+		new Case("x * y", new Object[] {1.5, 2.0}, new Object[] {3L, 2L}, true),
+		new Case("x / y", new Object[] {7L, 2L}, new Object[] {7.0, 2L}, true),
+		new Case("-x + y", new Object[] {3L, 4L}, new Object[] {M, M}, true),
+		new Case("x < y", new Object[] {3L, 4L}, new Object[] {3L, 4.5}, true),
+		new Case("x == y", new Object[] {3L, 3L}, new Object[] {3L, 3.0}, true),
+		new Case("x & y", new Object[] {6L, 3L}, new Object[] {true, false}, true),
+		// matrices are never specialized, so the expression must stay in the profiling tier
+		new Case("x + y", new Object[] {M, M}, new Object[] {M, M}, false),
+	};
+
+	private static String evaluate(TieredExpression expression, Variables variables) {
+		try {
+			return String.valueOf(expression.evaluate(variables));
+		} catch (RuntimeException e) {
+			return e.getClass().getSimpleName();
+		}
+	}
+
+	private static String untiered(MathParser.ParseResult parsed, MathParser parser) {
+		try {
+			return String.valueOf(parser.evaluate(parsed));
+		} catch (RuntimeException e) {
+			return e.getClass().getSimpleName();
+		}
+	}
+
+	public static void main(String[] args) {
+		var failed = false;
+		for (final var c : CASES) {
+			final var variables = new MapVariables();
+			final var parser = new MathParser(variables);
+			final var parsed = MathParser.tryParse(c.source());
+			final var expression = new TieredExpression(parsed.postfix());
+			String problem = null;
+
+			variables.put("x", c.hot()[0]);
+			variables.put("y", c.hot()[1]);
+			for (var i = 0; i < 2 * TieredExpression.HOT_THRESHOLD && problem == null; ++i) {
+				final var tiered = evaluate(expression, variables);
+				final var expected = untiered(parsed, parser);
+				if (!Objects.equals(tiered, expected))
+					problem = "hot: " + tiered + ", expected " + expected;
+			}
+			if (problem == null && (expression.tier() == 1) != c.specializes())
+				problem = "tier " + expression.tier() + " after " + expression.executionCount() + " executions";
+
+			variables.put("x", c.cold()[0]);
+			variables.put("y", c.cold()[1]);
+			for (var i = 0; i < 3 && problem == null; ++i) {
+				final var tiered = evaluate(expression, variables);
+				final var expected = untiered(parsed, parser);
+				if (!Objects.equals(tiered, expected))
+					problem = "after deoptimizing: " + tiered + ", expected " + expected;
+			}
+			if (problem == null && c.specializes() && expression.deoptCount() == 0)
+				problem = "never deoptimized";
+
+			System.out.printf("%-12s %s%n", c.source(), (problem == null) ? "ok" : "FAIL: " + problem);
+			failed |= problem != null;
+		}
+		if (failed)
+			System.exit(1);
+	}
+}
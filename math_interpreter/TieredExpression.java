@@ -0,0 +1,361 @@
+package math_interpreter;
+
+import java.util.List;
+
+/**
+ * A compiled postfix expression that profiles the operand types seen at each
+ * operator site and, once hot, switches those sites to code specialized for
+ * the observed types. Specialized sites guard on their operand types; a failed
+ * guard evaluates that site generically, deoptimizes it and drops the
+ * expression back to the profiling tier.
+ *
+ * <p>
+ * Profiling state is not synchronized. Sharing an instance between threads is
+ * safe (every path produces the generic result) but the counters may be lossy.
+ */
+final class TieredExpression {
+	/** Executions of the whole expression before sites are specialized. */
+	static final int HOT_THRESHOLD = 1_000;
+
+	/** Deoptimizations after which a site stays generic for good. */
+	static final int MAX_SITE_DEOPTS = 4;
+
+	// observed type bits
+	private static final byte LONG = 1, DOUBLE = 2, BOOLEAN = 4, OTHER = 8;
+
+	private static byte typeOf(Object o) {
+		if (o instanceof Long)
+			return LONG;
+		if (o instanceof Double)
+			return DOUBLE;
+		if (o instanceof Boolean)
+			return BOOLEAN;
+		return OTHER;
+	}
+
+	private static boolean isMonomorphic(byte types) {
+		return types != 0 && types != OTHER && (types & (types - 1)) == 0;
+	}
+
+	/**
+	 * Profile and specialization state of a single operator in the postfix code.
+	 */
+	private static final class Site {
+		final Operator operator;
+		long executions;
+		byte leftTypes, rightTypes;
+		/** Types the specialized code expects, or 0 when running generically. */
+		byte expectedLeft, expectedRight;
+		int deopts;
+
+		Site(Operator operator) {
+			this.operator = operator;
+		}
+
+		boolean specialized() {
+			return expectedLeft != 0;
+		}
+	}
+
+	/** Returned by the specialized paths when a guard fails. */
+	private static final Object DEOPT = new Object();
+
+	private final Token[] code;
+	private final Site[] sites;
+	private final int maxStackDepth;
+
+	private int tier;
+	private long executions;
+	private int deoptCount;
+
+	TieredExpression(List<Token> postfixTokens) {
+		final var size = postfixTokens.size();
+		code = postfixTokens.toArray(new Token[size]);
+		sites = new Site[size];
+		var depth = 0;
+		var maxDepth = 0;
+		for (var i = 0; i < size; ++i) {
+			final var token = code[i];
+			if (token instanceof Operand) {
+				maxDepth = Math.max(maxDepth, ++depth);
+			} else if (token instanceof BinaryOperator || token instanceof AssignmentOperator) {
+				--depth;
+			} else if (token instanceof final FunctionCall call) {
+				depth -= call.argumentCount - 1;
+				maxDepth = Math.max(maxDepth, depth);
+			}
+			if (token instanceof BinaryOperator || token instanceof UnaryOperator)
+				sites[i] = new Site((Operator) token);
+		}
+		maxStackDepth = maxDepth;
+	}
+
+	/** @return {@code 0} while profiling, {@code 1} once some site is specialized */
+	int tier() {
+		return tier;
+	}
+
+	/** @return How many times a specialized site has hit an unexpected type */
+	int deoptCount() {
+		return deoptCount;
+	}
+
+	long executionCount() {
+		return executions;
+	}
+
+	Object evaluate(Variables variables) {
+		return evaluate(variables, null);
+	}
+
+	/**
+	 * @param meter Budget to charge, or {@code null} to evaluate without limits
+	 */
+	Object evaluate(Variables variables, BudgetMeter meter) {
+		if (++executions % HOT_THRESHOLD == 0 && tier == 0)
+			tierUp();
+
+		if (meter == null)
+			return run(variables, null);
+		meter.enter();
+		try {
+			return run(variables, meter);
+		} finally {
+			meter.exit();
+		}
+	}
+
+	private Object run(Variables variables, BudgetMeter meter) {
+		if (meter != null)
+			meter.checkDepth(maxStackDepth);
+
+		final var stack = new Object[maxStackDepth];
+		// identifiers stay unresolved on the stack until consumed, so assignments can see them
+		var sp = 0;
+
+		for (var i = 0; i < code.length; ++i) {
+			final var token = code[i];
+
+			if (meter != null)
+				meter.step();
+
+			if (token instanceof final Value v) {
+				stack[sp++] = v.value;
+				continue;
+			}
+
+			if (token instanceof final Operand o) {
+				stack[sp++] = o;
+				continue;
+			}
+
+			if (token instanceof final AssignmentOperator assignmentOperator) {
+				final var value = resolve(stack[--sp], variables);
+				final var identifier = ((Identifier) stack[--sp]).identifier;
+				stack[sp++] = assignmentOperator.evaluate(variables, identifier, value);
+				continue;
+			}
+
+			if (token instanceof final FunctionCall call) {
+				final var arguments = new Object[call.argumentCount];
+				for (var k = arguments.length - 1; k >= 0; --k)
+					arguments[k] = resolve(stack[--sp], variables);
+				final var result = call.invoke(variables, arguments);
+				if (meter != null)
+					meter.charge(result, arguments);
+				stack[sp++] = result;
+				continue;
+			}
+
+			final var site = sites[i];
+			++site.executions;
+
+			if (token instanceof final BinaryOperator binaryOperator) {
+				final var b = resolve(stack[--sp], variables);
+				final var a = resolve(stack[--sp], variables);
+				Object result = DEOPT;
+				if (site.specialized()) {
+					result = specializedBinary(site, a, b);
+					if (result == DEOPT)
+						deoptimize(site);
+				}
+				if (result == DEOPT) {
+					site.leftTypes |= typeOf(a);
+					site.rightTypes |= typeOf(b);
+					if (meter != null)
+						meter.reserve(token, a, b);
+					result = binaryOperator.evaluate(a, b);
+					if (meter != null)
+						meter.charge(result, a, b);
+				}
+				stack[sp++] = result;
+				continue;
+			}
+
+			if (token instanceof final UnaryOperator unaryOperator) {
+				final var x = resolve(stack[--sp], variables);
+				Object result = DEOPT;
+				if (site.specialized()) {
+					result = specializedUnary(site, x);
+					if (result == DEOPT)
+						deoptimize(site);
+				}
+				if (result == DEOPT) {
+					site.leftTypes |= typeOf(x);
+					if (meter != null)
+						meter.reserve(token, x, null);
+					result = unaryOperator.evaluate(x);
+					if (meter != null)
+						meter.charge(result, x, null);
+				}
+				stack[sp++] = result;
+			}
+		}
+
+		return resolve(stack[sp - 1], variables);
+	}
+
+	private static Object resolve(Object stackEntry, Variables variables) {
+		return (stackEntry instanceof final Operand o) ? o.getValue(variables) : stackEntry;
+	}
+
+	private void tierUp() {
+		var specialized = false;
+		for (final var site : sites) {
+			if (site == null || site.deopts >= MAX_SITE_DEOPTS)
+				continue;
+			if (site.specialized()) {
+				specialized = true;
+				continue;
+			}
+			final var unary = site.operator instanceof UnaryOperator;
+			if (!isMonomorphic(site.leftTypes) || (!unary && !isMonomorphic(site.rightTypes)))
+				continue;
+			if (!canSpecialize(site.operator, site.leftTypes, unary ? site.leftTypes : site.rightTypes))
+				continue;
+			site.expectedLeft = site.leftTypes;
+			site.expectedRight = site.rightTypes;
+			specialized = true;
+		}
+		// with nothing specialized, stay in the profiling tier and try again later
+		tier = specialized ? 1 : 0;
+	}
+
+	private void deoptimize(Site site) {
+		site.expectedLeft = 0;
+		site.expectedRight = 0;
+		++site.deopts;
+		++deoptCount;
+		tier = 0;
+	}
+
+	/**
+	 * Only type combinations whose specialized result is identical to the generic
+	 * one are eligible; everything else keeps going through {@code evaluate}.
+	 */
+	private static boolean canSpecialize(Operator operator, byte left, byte right) {
+		final var numeric = (left | right) == LONG || (left | right) == DOUBLE || (left | right) == (LONG | DOUBLE);
+		return switch (operator) {
+			case final BinaryArithmeticOperator o -> numeric && o != BinaryArithmeticOperator.POWER;
+			case final BitwiseOperator o -> left == LONG && right == LONG;
+			// mixed long/double equality is false through Number.equals; leave that to the generic path
+			case final ComparisonOperator o -> left == right && left != OTHER;
+			case final BinaryBooleanOperator o -> left == BOOLEAN && right == BOOLEAN;
+			case final UnaryArithmeticOperator o -> left == LONG || left == DOUBLE;
+			case final UnaryBooleanOperator o -> left == BOOLEAN;
+			default -> false;
+		};
+	}
+
+	private static boolean guard(byte expected, Object o) {
+		return switch (expected) {
+			case LONG -> o instanceof Long;
+			case DOUBLE -> o instanceof Double;
+			case BOOLEAN -> o instanceof Boolean;
+			default -> false;
+		};
+	}
+
+	private static Object specializedBinary(Site site, Object a, Object b) {
+		if (!guard(site.expectedLeft, a) || !guard(site.expectedRight, b))
+			return DEOPT;
+
+		if (site.expectedLeft == LONG && site.expectedRight == LONG) {
+			final long x = (Long) a, y = (Long) b;
+			return switch (site.operator) {
+				case final BinaryArithmeticOperator o -> switch (o) {
+					case PLUS -> x + y;
+					case MINUS -> x - y;
+					case TIMES -> x * y;
+					case DIVIDE -> x / y;
+					default -> DEOPT;
+				};
+				case final BitwiseOperator o -> switch (o) {
+					case AND -> x & y;
+					case OR -> x | y;
+					case XOR -> x ^ y;
+				};
+				case final ComparisonOperator o -> switch (o) {
+					case EQUALS -> x == y;
+					case NOT_EQUAL -> x != y;
+					case LESS_THAN -> x < y;
+					case LESS_THAN_OR_EQUAL -> x <= y;
+					case GREATER_THAN -> x > y;
+					case GREATER_THAN_OR_EQUAL -> x >= y;
+				};
+				default -> DEOPT;
+			};
+		}
+
+		if (site.expectedLeft == BOOLEAN) {
+			final boolean x = (Boolean) a, y = (Boolean) b;
+			return switch (site.operator) {
+				case final BinaryBooleanOperator o -> switch (o) {
+					case AND -> x && y;
+					case OR -> x || y;
+				};
+				case final ComparisonOperator o -> switch (o) {
+					case EQUALS -> x == y;
+					case NOT_EQUAL -> x != y;
+					default -> false;
+				};
+				default -> DEOPT;
+			};
+		}
+
+		final var x = ((Number) a).doubleValue();
+		final var y = ((Number) b).doubleValue();
+		return switch (site.operator) {
+			case final BinaryArithmeticOperator o -> switch (o) {
+				case PLUS -> x + y;
+				case MINUS -> x - y;
+				case TIMES -> x * y;
+				case DIVIDE -> x / y;
+				default -> DEOPT;
+			};
+			case final ComparisonOperator o -> switch (o) {
+				// Double.equals semantics: compares bit patterns
+				case EQUALS -> Double.doubleToLongBits(x) == Double.doubleToLongBits(y);
+				case NOT_EQUAL -> Double.doubleToLongBits(x) != Double.doubleToLongBits(y);
+				case LESS_THAN -> x < y;
+				case LESS_THAN_OR_EQUAL -> x <= y;
+				case GREATER_THAN -> x > y;
+				case GREATER_THAN_OR_EQUAL -> x >= y;
+			};
+			default -> DEOPT;
+		};
+	}
+
+	private static Object specializedUnary(Site site, Object x) {
+		if (!guard(site.expectedLeft, x))
+			return DEOPT;
+		return switch (site.operator) {
+			case final UnaryArithmeticOperator o -> switch (o) {
+				case PLUS -> x;
+				case NEGATE -> (site.expectedLeft == LONG) ? (Object) (-(Long) x) : (Object) (-(Double) x);
+			};
+			case final UnaryBooleanOperator o -> !(Boolean) x;
+			default -> DEOPT;
+		};
+	}
+}
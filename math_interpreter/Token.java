@@ -1,7 +1,6 @@
 package math_interpreter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 interface Token {}
@@ -31,13 +30,19 @@ enum UnaryArithmeticOperator implements UnaryOperator {
 	}
 
 	@Override
-	public Number evaluate(Object x) {
+	public Object evaluate(Object x) {
 		if (x instanceof final Number xN) {
 			return switch (this) {
 				case PLUS -> xN;
 				case NEGATE -> LongDoubleOperators.negate(xN);
 			};
 		}
+		if (x instanceof final Matrix xM) {
+			return switch (this) {
+				case PLUS -> xM;
+				case NEGATE -> xM.scale(-1);
+			};
+		}
 		throw new ClassCastException();
 	}
 }
@@ -59,6 +64,78 @@ enum UnaryBooleanOperator implements UnaryOperator {
 	}
 }
 
+/**
+ * Built-in single-argument math functions. The lexer emits these for a known
+ * function name followed by {@code '('}, so they are parsed as prefix
+ * operators applied to the parenthesized argument.
+ */
+enum BuiltinFunction implements UnaryOperator {
+	SIN, COS, TAN, EXP, LOG, SQRT, ABS;
+
+	static BuiltinFunction lookup(String name) {
+		return switch (name) {
+			case "sin" -> SIN;
+			case "cos" -> COS;
+			case "tan" -> TAN;
+			case "exp" -> EXP;
+			case "log" -> LOG;
+			case "sqrt" -> SQRT;
+			case "abs" -> ABS;
+			default -> null;
+		};
+	}
+
+	@Override
+	public byte precedence() {
+		return 6;
+	}
+
+	@Override
+	public Number evaluate(Object x) {
+		if (x instanceof final Number xN) {
+			return switch (this) {
+				case SIN -> LongDoubleOperators.sin(xN);
+				case COS -> Math.cos(xN.doubleValue());
+				case TAN -> Math.tan(xN.doubleValue());
+				case EXP -> Math.exp(xN.doubleValue());
+				case LOG -> Math.log(xN.doubleValue());
+				case SQRT -> Math.sqrt(xN.doubleValue());
+				case ABS -> (xN instanceof final Long xL) ? (Number) Math.abs(xL) : (Number) Math.abs(xN.doubleValue());
+			};
+		}
+		throw new ClassCastException();
+	}
+
+	double apply(double x) {
+		return switch (this) {
+			case SIN -> Math.sin(x);
+			case COS -> Math.cos(x);
+			case TAN -> Math.tan(x);
+			case EXP -> Math.exp(x);
+			case LOG -> Math.log(x);
+			case SQRT -> Math.sqrt(x);
+			case ABS -> Math.abs(x);
+		};
+	}
+
+	/**
+	 * @param x  The argument
+	 * @param fx {@code apply(x)}, passed in so it is not computed twice
+	 * @return The derivative of this function at {@code x}
+	 */
+	double derivative(double x, double fx) {
+		return switch (this) {
+			case SIN -> Math.cos(x);
+			case COS -> -Math.sin(x);
+			case TAN -> 1 + fx * fx;
+			case EXP -> fx;
+			case LOG -> 1 / x;
+			case SQRT -> 0.5 / fx;
+			case ABS -> Math.signum(x);
+		};
+	}
+}
+
 interface BinaryOperator extends Operator {
 	Object evaluate(Object a, Object b);
 }
@@ -78,7 +155,7 @@ enum BinaryArithmeticOperator implements BinaryOperator {
 	}
 
 	@Override
-	public Number evaluate(Object a, Object b) {
+	public Object evaluate(Object a, Object b) {
 		if (a instanceof final Number aN && b instanceof final Number bN) {
 			return switch (this) {
 				case PLUS -> LongDoubleOperators.add(aN, bN);
@@ -88,7 +165,28 @@ enum BinaryArithmeticOperator implements BinaryOperator {
 				case POWER -> LongDoubleOperators.power(aN, bN);
 			};
 		}
-		throw new ClassCastException("arguments must be Long or Double");
+		if (a instanceof Matrix || b instanceof Matrix) {
+			return evaluateMatrix(a, b);
+		}
+		throw new ClassCastException("arguments must be Long, Double or Matrix");
+	}
+
+	private Matrix evaluateMatrix(Object a, Object b) {
+		if (a instanceof final Matrix aM && b instanceof final Matrix bM) {
+			return switch (this) {
+				case PLUS -> aM.add(bM);
+				case MINUS -> aM.subtract(bM);
+				case TIMES -> aM.multiply(bM);
+				default -> throw new ClassCastException("operator " + this + " is not defined for matrices");
+			};
+		}
+		if (this == TIMES && a instanceof final Number aN && b instanceof final Matrix bM) {
+			return bM.scale(aN.doubleValue());
+		}
+		if ((this == TIMES || this == DIVIDE) && a instanceof final Matrix aM && b instanceof final Number bN) {
+			return aM.scale((this == TIMES) ? bN.doubleValue() : 1 / bN.doubleValue());
+		}
+		throw new ClassCastException("operator " + this + " is not defined for " + a + " and " + b);
 	}
 }
 
@@ -191,7 +289,7 @@ enum AssignmentOperator implements Operator {
 		};
 	}
 
-	public Object evaluate(HashMap<String, Object> variables, String identifier, Object value) {
+	public Object evaluate(Variables variables, String identifier, Object value) {
 		if (this == ASSIGNMENT || this == ON_THE_FLY) {
 			variables.put(identifier, value);
 			return value;
@@ -222,22 +320,27 @@ enum AssignmentOperator implements Operator {
 }
 
 interface Operand extends Token {
-	Object getValue(HashMap<String, Object> variables);
+	Object getValue(Variables variables);
 }
 
 final class Identifier implements Operand {
-	private static final HashMap<Object, Identifier> IDENTIFIER_CACHE = new HashMap<>();
+	/** Bound on the identifiers kept interned, across all parsers and threads */
+	static final int INTERNED_CAPACITY = 1 << 14;
+
+	static final SymbolTable SYMBOLS = new SymbolTable(INTERNED_CAPACITY);
 
 	static Identifier of(String s) {
-		final var cachedIdentifier = IDENTIFIER_CACHE.get(s);
-		if (cachedIdentifier != null)
-			return cachedIdentifier;
-		return new Identifier(s);
+		return SYMBOLS.intern(s);
+	}
+
+	/** Like {@link #of(String)}, without allocating the name when it is already interned */
+	static Identifier of(String source, int start, int end) {
+		return SYMBOLS.intern(source, start, end);
 	}
 
 	final String identifier;
 
-	private Identifier(String identifier) {
+	Identifier(String identifier) {
 		this.identifier = identifier;
 	}
 
@@ -247,7 +350,7 @@ final class Identifier implements Operand {
 	}
 
 	@Override
-	public Object getValue(HashMap<String, Object> variables) {
+	public Object getValue(Variables variables) {
 		return variables.get(identifier);
 	}
 }
@@ -257,13 +360,54 @@ final class Value implements Operand {
 	static final Value TRUE = new Value(Boolean.TRUE);
 	static final Value FALSE = new Value(Boolean.FALSE);
 
-	private static final HashMap<Object, Value> VALUE_CACHE = new HashMap<>();
+	// preallocated values: longs in [MIN_LONG, MAX_LONG] and doubles that are
+	// multiples of 1/DOUBLE_STEPS in [MIN_LONG, MAX_LONG]
+	private static final int MIN_LONG = -1024, MAX_LONG = 1024, DOUBLE_STEPS = 4;
+	private static final Value[] LONGS = new Value[MAX_LONG - MIN_LONG + 1];
+	private static final Value[] DOUBLES = new Value[(MAX_LONG - MIN_LONG) * DOUBLE_STEPS + 1];
+
+	static {
+		for (var i = 0; i < LONGS.length; ++i)
+			LONGS[i] = new Value((long) (MIN_LONG + i));
+		for (var i = 0; i < DOUBLES.length; ++i)
+			DOUBLES[i] = new Value(MIN_LONG + (double) i / DOUBLE_STEPS);
+	}
+
+	/** @return The preallocated value for {@code l}, or {@code null} */
+	private static Value cached(long l) {
+		return (l >= MIN_LONG && l <= MAX_LONG) ? LONGS[(int) l - MIN_LONG] : null;
+	}
+
+	/** @return The preallocated value for {@code d}, or {@code null} */
+	private static Value cached(double d) {
+		final var scaled = d * DOUBLE_STEPS;
+		// -0.0 has its own identity; NaN and out-of-range values fail the bounds
+		if (scaled >= MIN_LONG * DOUBLE_STEPS && scaled <= MAX_LONG * DOUBLE_STEPS && scaled == (int) scaled
+				&& Double.doubleToRawLongBits(d) != Double.doubleToRawLongBits(-0.0))
+			return DOUBLES[(int) scaled - MIN_LONG * DOUBLE_STEPS];
+		return null;
+	}
+
+	static Value of(long l) {
+		final var cached = cached(l);
+		return (cached != null) ? cached : new Value(l);
+	}
+
+	static Value of(double d) {
+		final var cached = cached(d);
+		return (cached != null) ? cached : new Value(d);
+	}
 
 	static Value of(Object o) {
-		final var cachedValue = VALUE_CACHE.get(o);
-		if (cachedValue != null)
-			return cachedValue;
-		return new Value(o);
+		final var cached = switch (o) {
+			case null -> NULL;
+			case final Long l -> cached(l.longValue());
+			case final Double d -> cached(d.doubleValue());
+			case final Boolean b -> b ? TRUE : FALSE;
+			default -> null;
+		};
+		// keep the caller's box rather than boxing again
+		return (cached != null) ? cached : new Value(o);
 	}
 
 	final Object value;
@@ -280,9 +424,113 @@ final class Value implements Operand {
 	}
 
 	@Override
-	public Object getValue(HashMap<String, Object> variables) {
+	public Object getValue(Variables variables) {
 		return value;
 	}
 }
 
+/**
+ * Placeholder {@code $index} of a {@link PreparedExpression}, 1-based. Its value
+ * comes from the {@link PreparedExpression.Bindings} the expression is
+ * evaluated with.
+ */
+final class Parameter implements Operand {
+	final int index;
+
+	Parameter(int index) {
+		this.index = index;
+	}
+
+	@Override
+	public String toString() {
+		return "$" + index;
+	}
+
+	@Override
+	public Object getValue(Variables variables) {
+		if (variables instanceof final PreparedExpression.Bindings bindings)
+			return bindings.parameter(index);
+		throw new IllegalStateException("parameter " + this + " can only be used in a prepared expression");
+	}
+}
+
+/**
+ * A function callable from expressions. Functions are bound to names like any
+ * other variable.
+ */
+interface MathFunction {
+	Object apply(Object[] arguments);
+
+	/**
+	 * @return Whether the result depends only on the arguments and the call has
+	 *         no side effects, so {@link ParallelExpression} may run it
+	 *         concurrently with the rest of the expression
+	 */
+	default boolean isPure() {
+		return false;
+	}
+
+	/**
+	 * @return Roughly how many nanoseconds {@link #apply} takes for these
+	 *         arguments; only consulted for pure functions
+	 */
+	default long estimatedNanos(Object[] arguments) {
+		return 0;
+	}
+
+	/**
+	 * Marks {@code function} as pure, taking about {@code estimatedNanos} per
+	 * call.
+	 */
+	static MathFunction pure(long estimatedNanos, MathFunction function) {
+		return new MathFunction() {
+			@Override
+			public Object apply(Object[] arguments) {
+				return function.apply(arguments);
+			}
+
+			@Override
+			public boolean isPure() {
+				return true;
+			}
+
+			@Override
+			public long estimatedNanos(Object[] arguments) {
+				return estimatedNanos;
+			}
+		};
+	}
+}
+
+/**
+ * Postfix instruction calling the function bound to {@code name} with the top
+ * {@code argumentCount} operands, the last argument on top. Names not bound to
+ * a function fall back to the built-in matrix functions of {@link Matrix}.
+ */
+final class FunctionCall implements Token {
+	final String name;
+	final int argumentCount;
+
+	FunctionCall(String name, int argumentCount) {
+		this.name = name;
+		this.argumentCount = argumentCount;
+	}
+
+	MathFunction function(Variables variables) {
+		if (variables.get(name) instanceof final MathFunction function)
+			return function;
+		final var builtin = Matrix.function(name);
+		if (builtin == null)
+			throw new RuntimeException("Function " + name + " does not exist");
+		return builtin;
+	}
+
+	Object invoke(Variables variables, Object[] arguments) {
+		return function(variables).apply(arguments);
+	}
 
+	@Override
+	public String toString() {
+		return name + '/' + argumentCount;
+	}
+}
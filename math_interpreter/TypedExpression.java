@@ -0,0 +1,528 @@
+package math_interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Static type of an expression node.
+ */
+enum StaticType {
+	LONG, DOUBLE, BOOLEAN;
+
+	/** @return The type of a runtime value, or {@code null} if it has none */
+	static StaticType of(Object value) {
+		return switch (value) {
+			case null -> null;
+			case final Long l -> LONG;
+			case final Double d -> DOUBLE;
+			case final Boolean b -> BOOLEAN;
+			default -> null;
+		};
+	}
+
+	boolean isNumeric() {
+		return this != BOOLEAN;
+	}
+}
+
+/**
+ * An expression whose every node has been given a {@link StaticType} before
+ * evaluation, compiled to instructions specialized for those types. Operators
+ * never inspect their operands at runtime: values live on a single
+ * {@code long[]} stack (doubles as raw bits, booleans as 0/1) and each
+ * instruction knows what it is operating on. Type errors are reported by
+ * {@link #compile} instead of surfacing mid-evaluation.
+ *
+ * <p>
+ * The only runtime conversions left are at the boundary: loading a variable
+ * unboxes the value from {@link Variables}, which throws
+ * {@code ClassCastException} if the host rebinds a variable to a value of a
+ * different type than it was compiled for.
+ */
+final class TypedExpression {
+	static class TypeCheckException extends RuntimeException {
+		TypeCheckException(String message) {
+			super(message);
+		}
+	}
+
+	private enum Instruction {
+		CONST, LOAD_LONG, LOAD_DOUBLE, LOAD_BOOLEAN, STORE_LONG, STORE_DOUBLE, STORE_BOOLEAN, NOP,
+		/** Converts the top of the stack from long to double */
+		L2D,
+		/** Converts the value below the top of the stack from long to double */
+		L2D_UNDER,
+		ADD_L, SUB_L, MUL_L, DIV_L, POW_L, AND_L, OR_L, XOR_L, NEG_L, ABS_L,
+		ADD_D, SUB_D, MUL_D, DIV_D, POW_D, NEG_D, FN_D,
+		EQ_L, NE_L, LT_L, LE_L, GT_L, GE_L,
+		EQ_D, NE_D, LT_D, LE_D, GT_D, GE_D,
+		EQ_B, NE_B, AND_B, OR_B, NOT_B,
+		/** Compare a long with a double for (in)equality: never equal, as with {@code Number.equals} */
+		EQ_MIXED, NE_MIXED;
+	}
+
+	private static final BuiltinFunction[] FUNCTIONS = BuiltinFunction.values();
+
+	private final Instruction[] code;
+	/** Per-instruction operand: constant index, name index or function ordinal */
+	private final int[] operands;
+	private final long[] constants;
+	private final String[] names;
+	private final int maxStackDepth;
+	private final StaticType resultType;
+
+	private TypedExpression(Instruction[] code, int[] operands, long[] constants, String[] names, int maxStackDepth,
+			StaticType resultType) {
+		this.code = code;
+		this.operands = operands;
+		this.constants = constants;
+		this.names = names;
+		this.maxStackDepth = maxStackDepth;
+		this.resultType = resultType;
+	}
+
+	StaticType resultType() {
+		return resultType;
+	}
+
+	/** Compile-time stack entry. */
+	private record Slot(StaticType type, String identifier, int loadIndex) {}
+
+	/**
+	 * Builds the instruction list while simulating the operand stack with
+	 * {@link Slot}s carrying each entry's static type.
+	 */
+	private static final class Compiler {
+		final Function<String, StaticType> typeOf;
+		final ArrayList<Instruction> code = new ArrayList<>();
+		final ArrayList<Integer> operands = new ArrayList<>();
+		final ArrayList<Long> constants = new ArrayList<>();
+		final ArrayList<String> names = new ArrayList<>();
+		final ArrayList<Slot> stack = new ArrayList<>();
+		int maxDepth;
+
+		Compiler(Function<String, StaticType> typeOf) {
+			this.typeOf = typeOf;
+		}
+
+		int emit(Instruction instruction, int operand) {
+			code.add(instruction);
+			operands.add(operand);
+			return code.size() - 1;
+		}
+
+		int emit(Instruction instruction) {
+			return emit(instruction, 0);
+		}
+
+		int nameIndex(String name) {
+			final var i = names.indexOf(name);
+			if (i >= 0)
+				return i;
+			names.add(name);
+			return names.size() - 1;
+		}
+
+		void push(StaticType type) {
+			push(new Slot(type, null, -1));
+		}
+
+		void push(Slot slot) {
+			stack.add(slot);
+			maxDepth = Math.max(maxDepth, stack.size());
+		}
+
+		StaticType pop(Token consumer) {
+			final var slot = stack.remove(stack.size() - 1);
+			if (slot.type() == null)
+				throw new TypeCheckException("identifier '" + slot.identifier() + "' has no known type (used by " + consumer + ')');
+			return slot.type();
+		}
+
+		void operand(Operand operand) {
+			if (operand instanceof final Identifier identifier) {
+				final var name = identifier.identifier;
+				final var type = typeOf.apply(name);
+				// an unknown type is only an error if the value is read; plain assignment targets may be new
+				final var load = emit((type == null) ? Instruction.NOP : switch (type) {
+					case LONG -> Instruction.LOAD_LONG;
+					case DOUBLE -> Instruction.LOAD_DOUBLE;
+					case BOOLEAN -> Instruction.LOAD_BOOLEAN;
+				}, nameIndex(name));
+				push(new Slot(type, name, load));
+				return;
+			}
+			if (operand instanceof final Value value) {
+				final var type = StaticType.of(value.value);
+				if (type == null)
+					throw new TypeCheckException("literal " + value + " has no static type");
+				constants.add(switch (type) {
+					case LONG -> (Long) value.value;
+					case DOUBLE -> Double.doubleToRawLongBits((Double) value.value);
+					case BOOLEAN -> ((Boolean) value.value) ? 1L : 0L;
+				});
+				emit(Instruction.CONST, constants.size() - 1);
+				push(type);
+				return;
+			}
+			throw new TypeCheckException("operand " + operand + " cannot be typed statically");
+		}
+
+		/**
+		 * Promotes the two topmost stack values to a common numeric type.
+		 *
+		 * @return {@code LONG} if both are long, otherwise {@code DOUBLE}
+		 */
+		StaticType numeric(Token operator, StaticType a, StaticType b) {
+			if (!a.isNumeric() || !b.isNumeric())
+				throw new TypeCheckException("operator " + operator + " expects numbers, got " + a + " and " + b);
+			if (a == StaticType.LONG && b == StaticType.LONG)
+				return StaticType.LONG;
+			if (a == StaticType.LONG)
+				emit(Instruction.L2D_UNDER);
+			if (b == StaticType.LONG)
+				emit(Instruction.L2D);
+			return StaticType.DOUBLE;
+		}
+
+		void binary(Token operator) {
+			final var b = pop(operator);
+			final var a = pop(operator);
+			switch (operator) {
+				case final BinaryArithmeticOperator o -> {
+					final var type = numeric(o, a, b);
+					final var isLong = type == StaticType.LONG;
+					emit(switch (o) {
+						case PLUS -> isLong ? Instruction.ADD_L : Instruction.ADD_D;
+						case MINUS -> isLong ? Instruction.SUB_L : Instruction.SUB_D;
+						case TIMES -> isLong ? Instruction.MUL_L : Instruction.MUL_D;
+						case DIVIDE -> isLong ? Instruction.DIV_L : Instruction.DIV_D;
+						case POWER -> isLong ? Instruction.POW_L : Instruction.POW_D;
+					});
+					push(type);
+				}
+				case final BitwiseOperator o -> {
+					if (a != StaticType.LONG || b != StaticType.LONG)
+						throw new TypeCheckException("operator " + o + " expects LONG operands, got " + a + " and " + b);
+					emit(switch (o) {
+						case AND -> Instruction.AND_L;
+						case OR -> Instruction.OR_L;
+						case XOR -> Instruction.XOR_L;
+					});
+					push(StaticType.LONG);
+				}
+				case final ComparisonOperator o -> {
+					if (a != b && (a == StaticType.BOOLEAN || b == StaticType.BOOLEAN))
+						throw new TypeCheckException("operator " + o + " compares " + a + " with " + b);
+					if (a != b && (o == ComparisonOperator.EQUALS || o == ComparisonOperator.NOT_EQUAL)) {
+						emit((o == ComparisonOperator.EQUALS) ? Instruction.EQ_MIXED : Instruction.NE_MIXED);
+						push(StaticType.BOOLEAN);
+						return;
+					}
+					// orderings widen a long operand, like LongDoubleOperators.lessThan
+					final var type = (a == StaticType.BOOLEAN) ? a : numeric(o, a, b);
+					emit(switch (type) {
+						case LONG -> switch (o) {
+							case EQUALS -> Instruction.EQ_L;
+							case NOT_EQUAL -> Instruction.NE_L;
+							case LESS_THAN -> Instruction.LT_L;
+							case LESS_THAN_OR_EQUAL -> Instruction.LE_L;
+							case GREATER_THAN -> Instruction.GT_L;
+							case GREATER_THAN_OR_EQUAL -> Instruction.GE_L;
+						};
+						case DOUBLE -> switch (o) {
+							case EQUALS -> Instruction.EQ_D;
+							case NOT_EQUAL -> Instruction.NE_D;
+							case LESS_THAN -> Instruction.LT_D;
+							case LESS_THAN_OR_EQUAL -> Instruction.LE_D;
+							case GREATER_THAN -> Instruction.GT_D;
+							case GREATER_THAN_OR_EQUAL -> Instruction.GE_D;
+						};
+						case BOOLEAN -> switch (o) {
+							case EQUALS -> Instruction.EQ_B;
+							case NOT_EQUAL -> Instruction.NE_B;
+							default -> throw new TypeCheckException("operator " + o + " is not defined for BOOLEAN");
+						};
+					});
+					push(StaticType.BOOLEAN);
+				}
+				case final BinaryBooleanOperator o -> {
+					if (a != StaticType.BOOLEAN || b != StaticType.BOOLEAN)
+						throw new TypeCheckException("operator " + o + " expects BOOLEAN operands, got " + a + " and " + b);
+					emit((o == BinaryBooleanOperator.AND) ? Instruction.AND_B : Instruction.OR_B);
+					push(StaticType.BOOLEAN);
+				}
+				default -> throw new TypeCheckException("unsupported operator " + operator);
+			}
+		}
+
+		void unary(Token operator) {
+			final var x = pop(operator);
+			switch (operator) {
+				case final UnaryArithmeticOperator o -> {
+					if (!x.isNumeric())
+						throw new TypeCheckException("operator " + o + " expects a number, got " + x);
+					if (o == UnaryArithmeticOperator.NEGATE)
+						emit((x == StaticType.LONG) ? Instruction.NEG_L : Instruction.NEG_D);
+					push(x);
+				}
+				case final UnaryBooleanOperator o -> {
+					if (x != StaticType.BOOLEAN)
+						throw new TypeCheckException("operator " + o + " expects BOOLEAN, got " + x);
+					emit(Instruction.NOT_B);
+					push(StaticType.BOOLEAN);
+				}
+				case final BuiltinFunction f -> {
+					if (!x.isNumeric())
+						throw new TypeCheckException("function " + f + " expects a number, got " + x);
+					if (f == BuiltinFunction.ABS && x == StaticType.LONG) {
+						emit(Instruction.ABS_L);
+						push(StaticType.LONG);
+						return;
+					}
+					if (x == StaticType.LONG)
+						emit(Instruction.L2D);
+					emit(Instruction.FN_D, f.ordinal());
+					push(StaticType.DOUBLE);
+				}
+				default -> throw new TypeCheckException("unsupported operator " + operator);
+			}
+		}
+
+		void assignment(AssignmentOperator operator) {
+			final var value = pop(operator);
+			final var target = stack.remove(stack.size() - 1);
+			if (target.identifier() == null)
+				throw new TypeCheckException("left side of " + operator + " must be an identifier");
+			final StaticType type;
+			if (operator == AssignmentOperator.ASSIGNMENT || operator == AssignmentOperator.ON_THE_FLY) {
+				// the old value is never read: drop its load
+				code.set(target.loadIndex(), Instruction.NOP);
+				if (target.type() != null && target.type() != value)
+					throw new TypeCheckException("cannot assign " + value + " to '" + target.identifier() + "' of type " + target.type());
+				type = value;
+			} else {
+				if (target.type() == null)
+					throw new TypeCheckException("identifier '" + target.identifier() + "' has no known type (used by " + operator + ')');
+				final var binary = switch (operator) {
+					case PLUS -> BinaryArithmeticOperator.PLUS;
+					case MINUS -> BinaryArithmeticOperator.MINUS;
+					case TIMES -> BinaryArithmeticOperator.TIMES;
+					case DIVIDE -> BinaryArithmeticOperator.DIVIDE;
+					case POWER -> BinaryArithmeticOperator.POWER;
+					case BITWISE_AND -> BitwiseOperator.AND;
+					case BITWISE_OR -> BitwiseOperator.OR;
+					case BITWISE_XOR -> BitwiseOperator.XOR;
+					default -> throw new IllegalStateException();
+				};
+				push(target.type());
+				push(value);
+				binary(binary);
+				type = pop(operator);
+				if (type != target.type())
+					throw new TypeCheckException(operator + " would change '" + target.identifier() + "' from " + target.type() + " to " + type);
+			}
+			emit(switch (type) {
+				case LONG -> Instruction.STORE_LONG;
+				case DOUBLE -> Instruction.STORE_DOUBLE;
+				case BOOLEAN -> Instruction.STORE_BOOLEAN;
+			}, nameIndex(target.identifier()));
+			push(type);
+		}
+	}
+
+	/**
+	 * Type-checks {@code postfixTokens} and compiles them to specialized
+	 * instructions.
+	 *
+	 * @param typeOf Static type of each identifier, or {@code null} if unknown;
+	 *               typically from declarations or from the values currently bound
+	 * @throws TypeCheckException If any node cannot be given a consistent type
+	 */
+	static TypedExpression compile(List<Token> postfixTokens, Function<String, StaticType> typeOf) {
+		final var compiler = new Compiler(typeOf);
+		for (final var token : postfixTokens) {
+			switch (token) {
+				case final Operand o -> compiler.operand(o);
+				case final AssignmentOperator o -> compiler.assignment(o);
+				case final BinaryOperator o -> compiler.binary(o);
+				case final UnaryOperator o -> compiler.unary(o);
+				case final FunctionCall c -> throw new TypeCheckException("call to " + c.name + " cannot be typed statically");
+				default -> throw new TypeCheckException("unexpected token " + token);
+			}
+		}
+		if (compiler.stack.size() != 1)
+			throw new TypeCheckException("malformed expression");
+		final var resultType = compiler.pop(null);
+
+		final var size = compiler.code.size();
+		final var operands = new int[size];
+		for (var i = 0; i < size; ++i)
+			operands[i] = compiler.operands.get(i);
+		final var constants = new long[compiler.constants.size()];
+		for (var i = 0; i < constants.length; ++i)
+			constants[i] = compiler.constants.get(i);
+		return new TypedExpression(compiler.code.toArray(new Instruction[size]), operands, constants,
+				compiler.names.toArray(new String[0]), compiler.maxDepth, resultType);
+	}
+
+	static TypedExpression compile(List<Token> postfixTokens, Map<String, StaticType> declaredTypes) {
+		return compile(postfixTokens, declaredTypes::get);
+	}
+
+	/**
+	 * @return The identifiers this expression reads or assigns, in the order
+	 *         {@link #evaluateRaw} expects their frame slots
+	 */
+	List<String> identifiers() {
+		return List.of(names);
+	}
+
+	/**
+	 * Evaluates with identifiers held in a frame of raw values (longs, double bits
+	 * or 0/1) instead of a {@link Variables} store, for row-at-a-time evaluation
+	 * where binding by name would cost a lookup and a box per value. Assignments
+	 * write back into the frame.
+	 *
+	 * @param slots {@code frame[slots[i]]} holds {@code identifiers().get(i)}
+	 * @param stack Scratch space of at least {@link #stackDepth()} elements,
+	 *              reused across calls
+	 * @return The raw result, see {@link #resultType()}
+	 */
+	long evaluateRaw(long[] frame, int[] slots, long[] stack) {
+		return run(null, frame, slots, stack);
+	}
+
+	int stackDepth() {
+		return maxStackDepth;
+	}
+
+	/** @return The raw result: a long, double bits or 0/1 depending on {@link #resultType()} */
+	private long run(Variables variables) {
+		return run(variables, null, null, new long[maxStackDepth]);
+	}
+
+	private long run(Variables variables, long[] frame, int[] slots, long[] stack) {
+		var sp = -1;
+
+		for (var pc = 0; pc < code.length; ++pc) {
+			switch (code[pc]) {
+				case CONST -> stack[++sp] = constants[operands[pc]];
+				case LOAD_LONG -> stack[++sp] = (frame != null) ? frame[slots[operands[pc]]]
+						: (Long) variables.get(names[operands[pc]]);
+				case LOAD_DOUBLE -> stack[++sp] = (frame != null) ? frame[slots[operands[pc]]]
+						: Double.doubleToRawLongBits((Double) variables.get(names[operands[pc]]));
+				case LOAD_BOOLEAN -> stack[++sp] = (frame != null) ? frame[slots[operands[pc]]]
+						: ((Boolean) variables.get(names[operands[pc]])) ? 1 : 0;
+				case STORE_LONG, STORE_DOUBLE, STORE_BOOLEAN -> store(code[pc], variables, frame, slots, operands[pc], stack[sp]);
+				case NOP -> {}
+				case L2D -> stack[sp] = Double.doubleToRawLongBits(stack[sp]);
+				case L2D_UNDER -> stack[sp - 1] = Double.doubleToRawLongBits(stack[sp - 1]);
+
+				case ADD_L -> { --sp; stack[sp] = stack[sp] + stack[sp + 1]; }
+				case SUB_L -> { --sp; stack[sp] = stack[sp] - stack[sp + 1]; }
+				case MUL_L -> { --sp; stack[sp] = stack[sp] * stack[sp + 1]; }
+				case DIV_L -> { --sp; stack[sp] = stack[sp] / stack[sp + 1]; }
+				case POW_L -> { --sp; stack[sp] = (long) Math.pow(stack[sp], stack[sp + 1]); }
+				case AND_L -> { --sp; stack[sp] = stack[sp] & stack[sp + 1]; }
+				case OR_L -> { --sp; stack[sp] = stack[sp] | stack[sp + 1]; }
+				case XOR_L -> { --sp; stack[sp] = stack[sp] ^ stack[sp + 1]; }
+				case NEG_L -> stack[sp] = -stack[sp];
+				case ABS_L -> stack[sp] = Math.abs(stack[sp]);
+
+				case ADD_D -> { --sp; stack[sp] = d(d(stack[sp]) + d(stack[sp + 1])); }
+				case SUB_D -> { --sp; stack[sp] = d(d(stack[sp]) - d(stack[sp + 1])); }
+				case MUL_D -> { --sp; stack[sp] = d(d(stack[sp]) * d(stack[sp + 1])); }
+				case DIV_D -> { --sp; stack[sp] = d(d(stack[sp]) / d(stack[sp + 1])); }
+				case POW_D -> { --sp; stack[sp] = d(Math.pow(d(stack[sp]), d(stack[sp + 1]))); }
+				case NEG_D -> stack[sp] = d(-d(stack[sp]));
+				case FN_D -> stack[sp] = d(FUNCTIONS[operands[pc]].apply(d(stack[sp])));
+
+				case EQ_L -> { --sp; stack[sp] = b(stack[sp] == stack[sp + 1]); }
+				case NE_L -> { --sp; stack[sp] = b(stack[sp] != stack[sp + 1]); }
+				case LT_L -> { --sp; stack[sp] = b(stack[sp] < stack[sp + 1]); }
+				case LE_L -> { --sp; stack[sp] = b(stack[sp] <= stack[sp + 1]); }
+				case GT_L -> { --sp; stack[sp] = b(stack[sp] > stack[sp + 1]); }
+				case GE_L -> { --sp; stack[sp] = b(stack[sp] >= stack[sp + 1]); }
+
+				// Double.equals semantics: compares canonical bit patterns
+				case EQ_D -> { --sp; stack[sp] = b(Double.doubleToLongBits(d(stack[sp])) == Double.doubleToLongBits(d(stack[sp + 1]))); }
+				case NE_D -> { --sp; stack[sp] = b(Double.doubleToLongBits(d(stack[sp])) != Double.doubleToLongBits(d(stack[sp + 1]))); }
+				case LT_D -> { --sp; stack[sp] = b(d(stack[sp]) < d(stack[sp + 1])); }
+				case LE_D -> { --sp; stack[sp] = b(d(stack[sp]) <= d(stack[sp + 1])); }
+				case GT_D -> { --sp; stack[sp] = b(d(stack[sp]) > d(stack[sp + 1])); }
+				case GE_D -> { --sp; stack[sp] = b(d(stack[sp]) >= d(stack[sp + 1])); }
+
+				case EQ_B -> { --sp; stack[sp] = b(stack[sp] == stack[sp + 1]); }
+				case NE_B -> { --sp; stack[sp] = b(stack[sp] != stack[sp + 1]); }
+				case AND_B -> { --sp; stack[sp] = stack[sp] & stack[sp + 1]; }
+				case OR_B -> { --sp; stack[sp] = stack[sp] | stack[sp + 1]; }
+				case NOT_B -> stack[sp] ^= 1;
+				case EQ_MIXED -> stack[--sp] = 0;
+				case NE_MIXED -> stack[--sp] = 1;
+			}
+		}
+
+		return stack[0];
+	}
+
+	private void store(Instruction instruction, Variables variables, long[] frame, int[] slots, int name, long raw) {
+		if (frame != null) {
+			frame[slots[name]] = raw;
+			return;
+		}
+		switch (instruction) {
+			case STORE_LONG -> variables.put(names[name], raw);
+			case STORE_DOUBLE -> variables.put(names[name], Double.longBitsToDouble(raw));
+			default -> variables.put(names[name], raw != 0);
+		}
+	}
+
+	private static double d(long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+
+	private static long d(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	private static long b(boolean value) {
+		return value ? 1 : 0;
+	}
+
+	Object evaluate(Variables variables) {
+		final var raw = run(variables);
+		return switch (resultType) {
+			case LONG -> raw;
+			case DOUBLE -> Double.longBitsToDouble(raw);
+			case BOOLEAN -> raw != 0;
+		};
+	}
+
+	/** Evaluates a {@code LONG} expression without boxing the result. */
+	long evaluateLong(Variables variables) {
+		requireResultType(StaticType.LONG);
+		return run(variables);
+	}
+
+	/** Evaluates a numeric expression as a {@code double} without boxing the result. */
+	double evaluateDouble(Variables variables) {
+		if (!resultType.isNumeric())
+			throw new TypeCheckException("expression has type " + resultType + ", not a number");
+		final var raw = run(variables);
+		return (resultType == StaticType.LONG) ? raw : Double.longBitsToDouble(raw);
+	}
+
+	/** Evaluates a {@code BOOLEAN} expression without boxing the result. */
+	boolean evaluateBoolean(Variables variables) {
+		requireResultType(StaticType.BOOLEAN);
+		return run(variables) != 0;
+	}
+
+	private void requireResultType(StaticType type) {
+		if (resultType != type)
+			throw new TypeCheckException("expression has type " + resultType + ", not " + type);
+	}
+}
@@ -0,0 +1,36 @@
+package math_interpreter;
+
+import java.util.HashMap;
+
+/**
+ * Where identifiers are looked up and assigned during evaluation.
+ */
+interface Variables {
+	/** @return The value bound to {@code identifier}, or {@code null} if unbound */
+	Object get(String identifier);
+
+	void put(String identifier, Object value);
+}
+
+/**
+ * The plain {@code HashMap}-backed store every {@code MathParser} used before
+ * variable stores became pluggable.
+ */
+final class MapVariables implements Variables {
+	private final HashMap<String, Object> map = new HashMap<>();
+
+	@Override
+	public Object get(String identifier) {
+		return map.get(identifier);
+	}
+
+	@Override
+	public void put(String identifier, Object value) {
+		map.put(identifier, value);
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+}
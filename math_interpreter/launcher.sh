@@ -0,0 +1,96 @@
+#!/bin/sh
+# Runs math_interpreter.Launcher for short-lived command line evaluations,
+# reusing a class-data-sharing archive so the JVM maps the interpreter's
+# classes already parsed and linked instead of loading them on every launch.
+#
+#   launcher.sh --train [corpus]   (re)build the jar and record the archive
+#   launcher.sh EXPRESSION...      evaluate, with the archive if there is one
+#   launcher.sh < script           evaluate each line of standard input
+#
+# Training runs Launcher.CORPUS (plus the expressions in corpus, one per line)
+# and writes a dynamic AppCDS archive (-XX:ArchiveClassesAtExit), or a JDK AOT
+# cache (-XX:AOTCacheOutput) on JDK 25 and later. CDS only archives classes
+# loaded from a jar, so the sources next to this script are compiled into one
+# first, and again whenever a source changes, which also drops the stale
+# archive. Jar and archive live in $MATH_INTERPRETER_HOME (default
+# ~/.cache/math-interpreter); JAVA_HOME picks the JDK.
+set -e
+
+here=$(cd "$(dirname "$0")" && pwd)
+home=${MATH_INTERPRETER_HOME:-${XDG_CACHE_HOME:-$HOME/.cache}/math-interpreter}
+bin=${JAVA_HOME:+$JAVA_HOME/bin/}
+jar=$home/math-interpreter.jar
+# a one-line evaluation never gets hot enough for C2, and Serial GC starts fastest;
+# training and later runs must agree on these for the archive to be accepted
+options="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC"
+
+lock=$home/build.lock
+
+stale() {
+	[ ! -f "$jar" ] || [ -n "$(find "$here" -name '*.java' -newer "$jar" | head -n 1)" ]
+}
+
+# Concurrent launches build once: mkdir is atomic, so the lock directory admits
+# one builder, and the others find a fresh jar once it is released. The jar is
+# written next to its final name and renamed over it, so a running launch never
+# sees a partial jar.
+build() {
+	mkdir -p "$home"
+	waited=0
+	until mkdir "$lock" 2>/dev/null; do
+		# a build takes seconds: after a minute, assume the holder was killed
+		if [ "$waited" -ge 60 ]; then
+			rmdir "$lock" 2>/dev/null || true
+			waited=0
+		fi
+		sleep 1
+		waited=$((waited + 1))
+	done
+	stage=$(mktemp -d)
+	partial=$jar.$$
+	trap 'rm -rf "$stage" "$partial"; rmdir "$lock"' EXIT
+	if stale; then
+		mkdir "$stage/src" "$stage/classes"
+		# javac wants a public class in a file of its own name
+		for source in "$here"/*.java; do
+			class=$(sed -n 's/^public \(final \)\{0,1\}class \([A-Za-z0-9_]*\).*/\2/p' "$source")
+			cp "$source" "$stage/src/${class:-$(basename "$source" .java)}.java"
+		done
+		"${bin}javac" -d "$stage/classes" "$stage"/src/*.java
+		"${bin}jar" --create --file "$partial" -C "$stage/classes" .
+		rm -f "$home"/app.jsa "$home"/app.aot
+		mv -f "$partial" "$jar"
+	fi
+	# the script ends in exec, which would skip the EXIT trap
+	rm -rf "$stage"
+	rmdir "$lock"
+	trap - EXIT
+}
+
+if stale; then
+	build
+fi
+
+if [ "$1" = --train ]; then
+	shift
+	rm -f "$home"/app.jsa "$home"/app.aot
+	feature=$("${bin}java" -version 2>&1 | sed -n '1s/^[^"]*"\([0-9]*\).*/\1/p')
+	if [ "${feature:-0}" -ge 25 ]; then
+		archive="-XX:AOTCacheOutput=$home/app.aot"
+	else
+		archive="-XX:ArchiveClassesAtExit=$home/app.jsa"
+	fi
+	# shellcheck disable=SC2086
+	exec "${bin}java" $options "$archive" -cp "$jar" math_interpreter.Launcher --train "$@"
+fi
+
+if [ -f "$home/app.aot" ]; then
+	archive="-XX:AOTCache=$home/app.aot"
+elif [ -f "$home/app.jsa" ]; then
+	# an archive from another JDK is ignored; do not warn about it on every run
+	archive="-XX:SharedArchiveFile=$home/app.jsa -Xlog:cds=off -Xlog:cds+dynamic=off"
+else
+	archive=
+fi
+# shellcheck disable=SC2086
+exec "${bin}java" $options $archive -cp "$jar" math_interpreter.Launcher "$@"